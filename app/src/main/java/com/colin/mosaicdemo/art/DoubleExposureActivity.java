@@ -1,7 +1,7 @@
 package com.colin.mosaicdemo.art;
 
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
@@ -10,13 +10,22 @@ import android.graphics.Path;
 import android.graphics.RectF;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
 import com.colin.mosaicdemo.databinding.ActivityDoubleExposureBinding;
+import com.colin.mosaicdemo.mosaic.MosaicExporter;
+import com.colin.mosaicdemo.mosaic.MosaicMemoryBudget;
+import com.colin.mosaicdemo.mosaic.SourceDecoder;
+import com.colin.mosaicdemo.mosaic.TiledImageSource;
+import com.colin.mosaicdemo.util.SizeUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * create by colin
@@ -28,6 +37,8 @@ public class DoubleExposureActivity extends AppCompatActivity implements View.On
     private Bitmap expTextureBitmap;
     private Bitmap srcBitmap;
     private Path personPath;
+    private SourceDecoder srcDecoder;
+    private SourceDecoder textureDecoder;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -35,38 +46,116 @@ public class DoubleExposureActivity extends AppCompatActivity implements View.On
         viewBinding = ActivityDoubleExposureBinding.inflate(getLayoutInflater());
         setContentView(viewBinding.getRoot());
 
-        //初始化素材
-        try {
-            expTextureBitmap = BitmapFactory.decodeStream(getAssets().open("abstract_pattern.jpg"));
-            srcBitmap = BitmapFactory.decodeStream(getAssets().open("src.jpg"));
-            Bitmap blackBitmap = Bitmap.createBitmap(srcBitmap.getWidth(), srcBitmap.getHeight(), Bitmap.Config.ARGB_8888);
-            ColorMatrix colorMatrix = new ColorMatrix();
-            colorMatrix.setSaturation(0f);
-            ColorMatrixColorFilter filter = new ColorMatrixColorFilter(colorMatrix);
-            Canvas canvas = new Canvas(blackBitmap);
-            Paint paint = new Paint();
-            paint.setFilterBitmap(true);
-            paint.setDither(true);
-            paint.setAntiAlias(true);
-            paint.setColorFilter(filter);
-            canvas.drawBitmap(srcBitmap, 0, 0, paint);
-
-            //这里最好使用人像识别出的区域，演示为了方便直接添加为所有区域。
-            personPath = new Path();
-            personPath.addRect(new RectF(0, 0, srcBitmap.getWidth(), srcBitmap.getHeight()),
-                    Path.Direction.CCW);
-            viewBinding.viewPainter.setMskModel();
-            viewBinding.viewPainter.getViewCamera().setImageSize(srcBitmap.getWidth(), srcBitmap.getHeight());
-            viewBinding.viewPainter.setBlackSrcBitmap(blackBitmap);
-
-            viewBinding.viewPainter.post(new Runnable() {
-                @Override
-                public void run() {
-                    setBitmap();
-                }
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
+        //在后台解码素材，原图先显示一张小预览图
+        BitmapPool pool = Glide.get(this).getBitmapPool();
+        //人像图、灰度图都和原图一样大，原图按内存预算缩小后再用
+        long maxPixels = new MosaicMemoryBudget(this, MosaicMemoryBudget.PERSON_LAYERS).getMaxPixels();
+        srcDecoder = new SourceDecoder(pool, maxPixels);
+        srcDecoder.start(new AssetSource(getAssets(), "src.jpg"), new SourceDecoder.DecodeListener() {
+            @Override
+            public void onPreviewReady(final Bitmap preview, final int width, final int height) {
+                viewBinding.viewPainter.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        float fitScale = SizeUtils.computeFitScale(width, height,
+                                viewBinding.viewPainter.getWidth(), viewBinding.viewPainter.getHeight());
+                        viewBinding.viewPainter.getViewCamera().setViewScale(fitScale, fitScale, fitScale * 2f);
+                        viewBinding.viewPainter.setPreView(preview, width, height);
+                    }
+                });
+            }
+
+            @Override
+            public void onSourceReady(Bitmap source, int sourceWidth, int sourceHeight,
+                                      TiledImageSource tiledSource) {
+                srcBitmap = source;
+                onMaterialReady();
+            }
+
+            @Override
+            public void onDecodeFailed(Exception e) {
+                onMaterialFailed(e);
+            }
+        });
+        textureDecoder = new SourceDecoder(pool, maxPixels).setPreviewSize(0);
+        textureDecoder.start(new AssetSource(getAssets(), "abstract_pattern.jpg"), new SourceDecoder.DecodeListener() {
+            @Override
+            public void onPreviewReady(Bitmap preview, int width, int height) {
+
+            }
+
+            @Override
+            public void onSourceReady(Bitmap source, int sourceWidth, int sourceHeight,
+                                      TiledImageSource tiledSource) {
+                expTextureBitmap = source;
+                onMaterialReady();
+            }
+
+            @Override
+            public void onDecodeFailed(Exception e) {
+                onMaterialFailed(e);
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        srcDecoder.cancel();
+        textureDecoder.cancel();
+    }
+
+    //原图和纹理都解码完成后初始化画板
+    private void onMaterialReady() {
+        if (srcBitmap == null || expTextureBitmap == null)
+            return;
+        Bitmap blackBitmap = Bitmap.createBitmap(srcBitmap.getWidth(), srcBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        ColorMatrix colorMatrix = new ColorMatrix();
+        colorMatrix.setSaturation(0f);
+        ColorMatrixColorFilter filter = new ColorMatrixColorFilter(colorMatrix);
+        Canvas canvas = new Canvas(blackBitmap);
+        Paint paint = new Paint();
+        paint.setFilterBitmap(true);
+        paint.setDither(true);
+        paint.setAntiAlias(true);
+        paint.setColorFilter(filter);
+        canvas.drawBitmap(srcBitmap, 0, 0, paint);
+
+        //这里最好使用人像识别出的区域，演示为了方便直接添加为所有区域。
+        personPath = new Path();
+        personPath.addRect(new RectF(0, 0, srcBitmap.getWidth(), srcBitmap.getHeight()),
+                Path.Direction.CCW);
+        viewBinding.viewPainter.setMskModel();
+        viewBinding.viewPainter.getViewCamera().setImageSize(srcBitmap.getWidth(), srcBitmap.getHeight());
+        viewBinding.viewPainter.setBlackSrcBitmap(blackBitmap);
+
+        viewBinding.viewPainter.post(new Runnable() {
+            @Override
+            public void run() {
+                setBitmap();
+            }
+        });
+    }
+
+    private void onMaterialFailed(Exception e) {
+        e.printStackTrace();
+        srcDecoder.cancel();
+        textureDecoder.cancel();
+        Toast.makeText(this, "图片加载失败", Toast.LENGTH_SHORT).show();
+    }
+
+    private static class AssetSource implements MosaicExporter.Source {
+        private final AssetManager assets;
+        private final String name;
+
+        AssetSource(AssetManager assets, String name) {
+            this.assets = assets;
+            this.name = name;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return assets.open(name);
         }
     }
 
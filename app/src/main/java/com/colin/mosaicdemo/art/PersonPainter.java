@@ -9,14 +9,18 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
 import android.util.AttributeSet;
 
 import androidx.annotation.Nullable;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
 import com.colin.mosaicdemo.MyApp;
 import com.colin.mosaicdemo.mosaic.MosaicPainter;
 import com.colin.mosaicdemo.mosaic.MosaicPath;
+import com.colin.mosaicdemo.mosaic.MosaicStrokeCache;
+import com.colin.mosaicdemo.mosaic.TiledSurface;
 
 import java.util.List;
 
@@ -41,8 +45,8 @@ public class PersonPainter extends MosaicPainter {
     //抠人像的画笔
     private Paint paintSrcIn;
 
-    private Canvas textureCanvas;
-    private Bitmap textureBitmap;
+    //纹理颜色，合成时直接给覆盖率着色
+    private Paint paintTexture;
 
     public PersonPainter(Context context) {
         super(context);
@@ -61,6 +65,8 @@ public class PersonPainter extends MosaicPainter {
         paintSrcIn.setAntiAlias(true);
         paintSrcIn.setFilterBitmap(true);
         paintSrcIn.setDither(true);
+        paintTexture = new Paint();
+        paintTexture.setColor(Color.parseColor("#80D62626"));
     }
 
     protected void preDrawAll(Canvas pathCanvas, Paint pathPaint, boolean needBlur) {
@@ -70,22 +76,21 @@ public class PersonPainter extends MosaicPainter {
 
 
     @Override
-    protected void drawPathToCanvas() {
-        textureCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-        textureCanvas.save();
-        textureCanvas.drawColor(Color.parseColor("#80D62626"));
-        textureCanvas.drawBitmap(mPathBitmap, 0, 0, paintSrcIn);
-        textureCanvas.restore();
-        mResultCanvas.drawBitmap(textureBitmap, 0, 0, mPaintSrc);
+    protected boolean getPreDrawBounds(RectF out) {
+        if (personPath == null)
+            return false;
+        personPath.computeBounds(out, false);
+        out.inset(-2, -2);
+        return true;
+    }
+
+    @Override
+    protected void drawPathToCanvas(Canvas resultCanvas, Bitmap pathTile, int left, int top) {
+        //路径瓦片是 ALPHA_8，用纹理颜色画出来就是原来 DST_IN 的效果
+        resultCanvas.drawBitmap(pathTile, left, top, paintTexture);
     }
 
     public void setPersonAndBitmaps(Bitmap srcBitmap, Path personPath, float personPathScale) {
-        personBitmap = Glide.get(getContext()).getBitmapPool()
-                .get(srcBitmap.getWidth(), srcBitmap.getHeight(), Bitmap.Config.ARGB_8888);
-        textureBitmap = Glide.get(getContext()).getBitmapPool()
-                .get(srcBitmap.getWidth(), srcBitmap.getHeight(), Bitmap.Config.ARGB_8888);
-        personCanvas = new Canvas(personBitmap);
-        textureCanvas = new Canvas(textureBitmap);
         this.personPath = personPath;
         this.personPathScale = personPathScale;
         blurMaskFilter = new BlurMaskFilter(getBlurRadius(srcBitmap), BlurMaskFilter.Blur.NORMAL);
@@ -96,8 +101,8 @@ public class PersonPainter extends MosaicPainter {
     }
 
     public void resetScale() {
-        if (personBitmap != null) {
-            float fitScale = computeFitScale(personBitmap);
+        if (mSrcBitmap != null) {
+            float fitScale = computeFitScale(mSrcBitmap);
             getViewCamera().reset();
             getViewCamera().setViewScale(fitScale, fitScale, fitScale * 2f);
         }
@@ -136,10 +141,16 @@ public class PersonPainter extends MosaicPainter {
 
 
     public Bitmap createPersonBitmap(boolean needGray, boolean needBlur) {
-
+        //抠出的人像是整张图，用到时才分配
+        if (personBitmap == null) {
+            personBitmap = Glide.get(getContext()).getBitmapPool()
+                    .get(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+            personCanvas = new Canvas(personBitmap);
+        }
+        //mPaintPath 和 mPaintClean 属于渲染线程，这里用复制的画笔
         staticCreatePersonBitmap(needGray, needBlur, blackSrcBitmap, mSrcBitmap,
-                mPaintPath, mPaintClean, paintSrcIn, mPaintSrc, personCanvas,
-                personPath, personPathScale, getPathList());
+                newPathPaint(), newCleanPaint(), paintSrcIn, mPaintSrc, personCanvas,
+                personPath, personPathScale, getPathList(), getStrokeCache(), getBaseSurface());
         return personBitmap;
     }
 
@@ -147,21 +158,16 @@ public class PersonPainter extends MosaicPainter {
         super.cleanBitmap();
         if (personBitmap != null) {
             personBitmap.recycle();
+            personBitmap = null;
         }
         if (personCanvas != null) {
             personCanvas.setBitmap(null);
         }
-        if (textureBitmap != null) {
-            textureBitmap.recycle();
-        }
-        if (textureCanvas != null) {
-            textureCanvas.setBitmap(null);
-        }
     }
 
     public MosaicPath getPersonPath() {
         MosaicPath path = new MosaicPath();
-        path.path = new Path(personPath);
+        path.setShape(new Path(personPath));
         path.size = personPathScale;
         path.type = MosaicPath.TYPE_SMUDGE;
         return path;
@@ -181,6 +187,20 @@ public class PersonPainter extends MosaicPainter {
                                                 Paint paintPath, Paint paintClean, Paint paintSrcIn, Paint paintSrc,
                                                 Canvas personCanvas, Path personPath, float personPathScale,
                                                 List<MosaicPath> pathList) {
+        staticCreatePersonBitmap(needGray, needBlur, blackSrcBitmap, srcBitmap, paintPath, paintClean,
+                paintSrcIn, paintSrc, personCanvas, personPath, personPathScale, pathList, null, null);
+    }
+
+    /**
+     * @param strokeCache  不为空且不需要羽化时，画完的笔画直接贴缓存的覆盖率
+     * @param baseCoverage 已经合并的笔画，不为空时代替人像路径作为底图
+     */
+    public static void staticCreatePersonBitmap(boolean needGray, boolean needBlur,
+                                                Bitmap blackSrcBitmap, Bitmap srcBitmap,
+                                                Paint paintPath, Paint paintClean, Paint paintSrcIn, Paint paintSrc,
+                                                Canvas personCanvas, Path personPath, float personPathScale,
+                                                List<MosaicPath> pathList, MosaicStrokeCache strokeCache,
+                                                TiledSurface baseCoverage) {
         Bitmap sourceBitmap;
         if (needGray && blackSrcBitmap != null) {
             sourceBitmap = blackSrcBitmap;
@@ -188,16 +208,43 @@ public class PersonPainter extends MosaicPainter {
             sourceBitmap = srcBitmap;
         }
         BlurMaskFilter blurMaskFilter = new BlurMaskFilter(getBlurRadius(sourceBitmap), BlurMaskFilter.Blur.NORMAL);
+        //只用来 DST_IN 抠图，保存覆盖率就够了
         Bitmap pathBitmap = Glide.get(MyApp.appContext).getBitmapPool()
-                .get(sourceBitmap.getWidth(), sourceBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+                .get(sourceBitmap.getWidth(), sourceBitmap.getHeight(), Bitmap.Config.ALPHA_8);
         //画出路径
         Canvas pathCanvas = new Canvas(pathBitmap);
-        staticPreDrawAll(pathCanvas, paintPath, needBlur, blurMaskFilter, personPath, personPathScale);
+        if (baseCoverage != null) {
+            //底图里已经包含人像路径，羽化直接作用在覆盖率上
+            if (needBlur) {
+                //按瓦片分别羽化会在瓦片边缘淡出，先拼成一整张再整体羽化一次
+                BitmapPool pool = Glide.get(MyApp.appContext).getBitmapPool();
+                Bitmap baseBitmap = pool.get(sourceBitmap.getWidth(), sourceBitmap.getHeight(),
+                        Bitmap.Config.ALPHA_8);
+                Canvas baseCanvas = new Canvas(baseBitmap);
+                synchronized (baseCoverage) {
+                    baseCoverage.drawTo(baseCanvas, 0, 0, null);
+                }
+                baseCanvas.setBitmap(null);
+                Paint paintBase = new Paint();
+                paintBase.setMaskFilter(blurMaskFilter);
+                pathCanvas.drawBitmap(baseBitmap, 0, 0, paintBase);
+                pool.put(baseBitmap);
+            } else {
+                synchronized (baseCoverage) {
+                    baseCoverage.drawTo(pathCanvas, 0, 0, null);
+                }
+            }
+        } else {
+            staticPreDrawAll(pathCanvas, paintPath, needBlur, blurMaskFilter, personPath, personPathScale);
+        }
         if (needBlur) {
             paintPath.setMaskFilter(blurMaskFilter);
             paintClean.setMaskFilter(blurMaskFilter);
         }
         for (MosaicPath mosaicPath : pathList) {
+            if (strokeCache != null && !needBlur && mosaicPath.isFinished()
+                    && strokeCache.draw(mosaicPath, pathCanvas))
+                continue;
             drawSinglePath(mosaicPath, pathCanvas, paintClean, paintPath);
         }
         paintPath.setMaskFilter(null);
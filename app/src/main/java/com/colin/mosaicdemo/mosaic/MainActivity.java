@@ -1,11 +1,13 @@
 package com.colin.mosaicdemo.mosaic;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
 import android.view.View;
+import android.widget.SeekBar;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -16,14 +18,35 @@ import com.bumptech.glide.request.target.CustomTarget;
 import com.bumptech.glide.request.transition.Transition;
 import com.colin.mosaicdemo.R;
 import com.colin.mosaicdemo.util.SizeUtils;
+import com.colin.mosaicdemo.util.ValueMappingUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 public class MainActivity extends AppCompatActivity implements MosaicPainter.MosaicInterFace {
 
+    private static final int MIN_BLOCK_SIZE = 4;
+    private static final String JOURNAL_DIR = "mosaic_journal";
+    private static final String SRC_ASSET = "src.jpg";
+    private static final Uri DEFAULT_TEXTURE = Uri.parse("file:///android_asset/pic1.jpg");
+    //保存时顺便生成的预览图和缩略图的长边上限
+    private static final int PREVIEW_SIZE = 1080;
+    private static final int THUMBNAIL_SIZE = 256;
+    //可以撤销的笔画数，更早的合并到底图，重画和路径的内存不会随编辑时间一直增长
+    private static final int UNDO_STROKE_COUNT = 50;
+
     private MosaicPainter mosaicPainter;
+    private SeekBar blockSeekBar;
+    //工作图，解码完成之前为空
     private Bitmap srcBitmap;
+    private SourceDecoder sourceDecoder;
+    //编辑图层的内存预算，决定工作图的分辨率和是否懒加载马赛克
+    private MosaicMemoryBudget memoryBudget;
+    private boolean exporting;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -31,31 +54,140 @@ public class MainActivity extends AppCompatActivity implements MosaicPainter.Mos
         setContentView(R.layout.activity_main);
         mosaicPainter = findViewById(R.id.main_mp);
         mosaicPainter.setMosaicInterFace(this);
-        //加载原图
-        try {
-            InputStream open = getAssets().open("src.jpg");
-            srcBitmap = BitmapFactory.decodeStream(open);
-            mosaicPainter.post(new Runnable() {
-                @Override
-                public void run() {
-                    int botMargin = getResources().getDimensionPixelSize(R.dimen.bot_height);
-                    mosaicPainter.setBottomMargin(botMargin);
-                    float fitScale = SizeUtils.computeFitScale(srcBitmap,
-                            mosaicPainter.getWidth(), mosaicPainter.getHeight() - botMargin);
-                    mosaicPainter.getViewCamera().setViewScale(fitScale, fitScale, fitScale * 2f);
-                    mosaicPainter.getViewCamera().setImageSize(srcBitmap.getWidth(), srcBitmap.getHeight());
-                    //这里马赛克化的图片需要有算法生成，方便演示。使用原图代替。
-                    mosaicPainter.setBitmaps(srcBitmap, srcBitmap, true);
-                    setPic();
-                }
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
+        //缩小显示大图时只合成屏幕上可见的部分
+        mosaicPainter.setViewportRender(true);
+        mosaicPainter.setFlattenStrokeCount(UNDO_STROKE_COUNT);
+        blockSeekBar = findViewById(R.id.main_sb_block);
+        //在后台加载原图，先显示一张小预览图。原图超出内存预算时缩小后编辑，放大时的细节由分块解码补上
+        memoryBudget = new MosaicMemoryBudget(this, MosaicMemoryBudget.MOSAIC_LAYERS);
+        sourceDecoder = new SourceDecoder(Glide.get(this).getBitmapPool(), memoryBudget.getMaxPixels())
+                .setTiledSource(TiledImageSource.getDefaultMaxBytes());
+        sourceDecoder.start(new MosaicExporter.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return getAssets().open(SRC_ASSET);
+            }
+        }, new SourceDecoder.DecodeListener() {
+            @Override
+            public void onPreviewReady(final Bitmap preview, final int width, final int height) {
+                mosaicPainter.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        initViewCamera(width, height);
+                        mosaicPainter.setPreView(preview, width, height);
+                    }
+                });
+            }
+
+            @Override
+            public void onSourceReady(final Bitmap source, final int sourceWidth, final int sourceHeight,
+                                      final TiledImageSource tiledSource) {
+                mosaicPainter.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setSource(source, sourceWidth, sourceHeight, tiledSource);
+                    }
+                });
+            }
+
+            @Override
+            public void onDecodeFailed(Exception e) {
+                e.printStackTrace();
+                Toast.makeText(MainActivity.this, "图片加载失败", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void initViewCamera(int width, int height) {
+        int botMargin = getResources().getDimensionPixelSize(R.dimen.bot_height);
+        mosaicPainter.setBottomMargin(botMargin);
+        float fitScale = SizeUtils.computeFitScale(width, height,
+                mosaicPainter.getWidth(), mosaicPainter.getHeight() - botMargin);
+        mosaicPainter.getViewCamera().setViewScale(fitScale, fitScale, fitScale * 2f);
+        mosaicPainter.getViewCamera().setImageSize(width, height);
+    }
+
+    private void setSource(Bitmap source, int sourceWidth, int sourceHeight, TiledImageSource tiledSource) {
+        srcBitmap = source;
+        initViewCamera(srcBitmap.getWidth(), srcBitmap.getHeight());
+        //整张图的积分图放不进预算时使用懒加载马赛克
+        mosaicPainter.setLazyMosaic(!memoryBudget.fits(srcBitmap.getWidth(), srcBitmap.getHeight(),
+                MosaicMemoryBudget.INTEGRAL));
+        //马赛克图层算出来之前先显示原图
+        mosaicPainter.setPreView(srcBitmap);
+        mosaicPainter.setBitmaps(srcBitmap, null, false, sourceWidth, sourceHeight);
+        mosaicPainter.setTiledSource(tiledSource);
+        //上次被杀之前的编辑，之后的操作都会记到日志里
+        MosaicSession session = mosaicPainter.openJournal(new File(getFilesDir(), JOURNAL_DIR));
+        if (session == null) {
+            initBlockSeekBar(0, true);
+            setPic(DEFAULT_TEXTURE, false);
+        } else {
+            //恢复出来的模式保持不变，块大小和纹理只是重新设置上去
+            initBlockSeekBar(session.getBlockSize(), false);
+            if (session.getSelectMskModel() == MosaicPath.TYPE_PIC) {
+                Uri textureUri = session.getTextureUri();
+                setPic(textureUri != null ? textureUri : DEFAULT_TEXTURE, true);
+            }
         }
     }
 
-    private void setPic() {
-        final Uri textureUri = Uri.parse("file:///android_asset/pic1.jpg");
+    /**
+     * @param blockSize   为 0 时使用默认的块大小
+     * @param switchModel 是否切换到马赛克模式，恢复编辑时为 false
+     */
+    private void initBlockSeekBar(int blockSize, boolean switchModel) {
+        int defaultBlockSize = blockSize > 0 ? blockSize : MosaicLayerCache.getNearestLevel(
+                MosaicEngine.getDefaultBlockSize(srcBitmap.getWidth(), srcBitmap.getHeight()));
+        mosaicPainter.setMosaicBlockSize(defaultBlockSize, switchModel);
+        blockSeekBar.setProgress((int) ValueMappingUtils.getLinearOutput(MIN_BLOCK_SIZE, 0,
+                getMaxBlockSize(), 100, defaultBlockSize));
+        blockSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (!fromUser)
+                    return;
+                int blockSize = (int) ValueMappingUtils.getLinearOutput(0, MIN_BLOCK_SIZE,
+                        100, getMaxBlockSize(), progress);
+                mosaicPainter.setMosaicBlockSize(blockSize);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+
+            }
+        });
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        //进入后台后趁空闲把日志压缩一下，下次启动回放得快
+        mosaicPainter.compactJournal();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        sourceDecoder.cancel();
+        mosaicPainter.closeJournal();
+        //停掉分块解码的线程
+        mosaicPainter.setTiledSource(null);
+    }
+
+    private int getMaxBlockSize() {
+        return Math.max(MIN_BLOCK_SIZE + 1, Math.max(srcBitmap.getWidth(), srcBitmap.getHeight()) / 20);
+    }
+
+    /**
+     * @param restore 恢复编辑时只设置纹理，不切换模式
+     */
+    private void setPic(final Uri textureUri, final boolean restore) {
         Glide.with(this)
                 .asBitmap()
                 .load(textureUri)
@@ -64,7 +196,10 @@ public class MainActivity extends AppCompatActivity implements MosaicPainter.Mos
                     @Override
                     public void onResourceReady(@NonNull Bitmap resource,
                                                 @Nullable Transition<? super Bitmap> transition) {
-                        mosaicPainter.setPicModel(resource, textureUri);
+                        if (restore)
+                            mosaicPainter.restoreTexture(resource, textureUri);
+                        else
+                            mosaicPainter.setPicModel(resource, textureUri);
                     }
 
                     @Override
@@ -87,12 +222,75 @@ public class MainActivity extends AppCompatActivity implements MosaicPainter.Mos
     }
 
     public void save(View view) {
-        //todo
-        Bitmap resultBitmap = mosaicPainter.getResultBitmap();
+        if (exporting || srcBitmap == null)
+            return;
+        File dir = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        if (dir == null)
+            dir = getFilesDir();
+        final File file = new File(dir, "mosaic_" + System.currentTimeMillis() + ".png");
+        OutputStream out;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        } catch (IOException e) {
+            Toast.makeText(this, "保存失败", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        exporting = true;
+        final CharSequence title = getTitle();
+        //按原图分辨率导出，原图每次分带重新读取，不占用编辑用的内存
+        mosaicPainter.export(new MosaicExporter.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return getAssets().open(SRC_ASSET);
+            }
+        }, out, PREVIEW_SIZE, THUMBNAIL_SIZE, new MosaicExporter.ExportListener() {
+            @Override
+            public void onExportProgress(int percent) {
+                setTitle("保存中 " + percent + "%");
+            }
+
+            @Override
+            public void onExportComplete(Bitmap preview, Bitmap thumbnail) {
+                exporting = false;
+                setTitle(title);
+                Toast.makeText(MainActivity.this, "已保存到 " + file.getPath(), Toast.LENGTH_SHORT).show();
+                //预览图和缩略图是导出时顺便缩小的，和大图放在一起
+                saveSmallImage(preview, new File(file.getParent(), "preview_" + file.getName()));
+                saveSmallImage(thumbnail, new File(file.getParent(), "thumb_" + file.getName()));
+            }
+
+            @Override
+            public void onExportFailed(Exception e) {
+                exporting = false;
+                e.printStackTrace();
+                file.delete();
+                setTitle(title);
+                Toast.makeText(MainActivity.this, "保存失败", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void saveSmallImage(final Bitmap bitmap, final File file) {
+        MosaicExporter.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                    try {
+                        MosaicExporter.writePng(bitmap, out);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                Glide.get(getApplicationContext()).getBitmapPool().put(bitmap);
+            }
+        });
     }
 
     public void texture(View view) {
-        setPic();
+        setPic(DEFAULT_TEXTURE, false);
     }
 
 
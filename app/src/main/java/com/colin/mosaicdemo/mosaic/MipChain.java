@@ -0,0 +1,194 @@
+package com.colin.mosaicdemo.mosaic;
+
+/**
+ * create by colin
+ * 2020/12/29
+ * <p>
+ * 按行输入的缩小图链。每一级是上一级 2x2 的盒式滤波，每凑够两行就算出下一级的一行，
+ * 只有需要输出的级别保存整张图，其他级别只缓存一行，导出时跟着分带走一遍就能得到所有尺寸。
+ * <p>
+ * 输入和输出都是非预乘的 ARGB，求平均时按 alpha 加权，半透明的边缘不会发黑。
+ * 奇数的宽高最后一列、一行单独求平均。
+ */
+class MipChain {
+
+    private final Level[] mLevels;
+    //mSizes[i] 对应的级别，-1 表示原图
+    private final int[] mOutputLevels;
+    private final int mWidth, mHeight;
+    private int[] mFullPixels;
+    private int mFullRows;
+
+    private static class Level {
+        final int width, height;
+        //需要输出时保存整张图
+        int[] pixels;
+        int rows;
+        //等待配对的上一行，上一级的宽度
+        final int[] pending;
+        boolean hasPending;
+        final int[] row;
+
+        Level(int sourceWidth, int width, int height) {
+            this.width = width;
+            this.height = height;
+            pending = new int[sourceWidth];
+            row = new int[width];
+        }
+    }
+
+    /**
+     * @param sizes 每个输出的长边上限，结果是不超过上限的最大一级，长边可能只有上限的一半
+     */
+    MipChain(int width, int height, int[] sizes) {
+        mWidth = width;
+        mHeight = height;
+        int minSize = Integer.MAX_VALUE;
+        for (int size : sizes) {
+            minSize = Math.min(minSize, size);
+        }
+        //一直缩小到最小的输出尺寸
+        int count = 0;
+        int w = width, h = height;
+        while (Math.max(w, h) > minSize && Math.max(w, h) > 1) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            count++;
+        }
+        mLevels = new Level[count];
+        w = width;
+        h = height;
+        for (int i = 0; i < count; i++) {
+            int next = (w + 1) / 2;
+            mLevels[i] = new Level(w, next, (h + 1) / 2);
+            w = next;
+            h = (h + 1) / 2;
+        }
+        mOutputLevels = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            int level = -1;
+            while (level < count - 1 && Math.max(getWidth(level), getHeight(level)) > sizes[i]) {
+                level++;
+            }
+            mOutputLevels[i] = level;
+            if (level < 0) {
+                //原图本身就不超过上限
+                if (mFullPixels == null)
+                    mFullPixels = new int[width * height];
+            } else if (mLevels[level].pixels == null) {
+                mLevels[level].pixels = new int[mLevels[level].width * mLevels[level].height];
+            }
+        }
+    }
+
+    /**
+     * 按顺序给出原图的 rows 行
+     */
+    void addRows(int[] pixels, int offset, int stride, int rows) {
+        for (int y = 0; y < rows; y++) {
+            int rowOffset = offset + y * stride;
+            if (mFullPixels != null) {
+                System.arraycopy(pixels, rowOffset, mFullPixels, mFullRows * mWidth, mWidth);
+                mFullRows++;
+            }
+            if (mLevels.length > 0)
+                addRow(0, pixels, rowOffset);
+        }
+    }
+
+    /**
+     * 原图的行都给完后调用，奇数高度的最后一行单独输出
+     */
+    void finish() {
+        for (int i = 0; i < mLevels.length; i++) {
+            Level level = mLevels[i];
+            if (level.hasPending) {
+                level.hasPending = false;
+                downsample(level, level.pending, 0, null, 0);
+                emit(i, level);
+            }
+        }
+    }
+
+    int getOutputCount() {
+        return mOutputLevels.length;
+    }
+
+    int getOutputWidth(int index) {
+        return getWidth(mOutputLevels[index]);
+    }
+
+    int getOutputHeight(int index) {
+        return getHeight(mOutputLevels[index]);
+    }
+
+    /**
+     * 第 index 个输出的像素，行宽就是输出的宽度
+     */
+    int[] getOutputPixels(int index) {
+        int level = mOutputLevels[index];
+        return level < 0 ? mFullPixels : mLevels[level].pixels;
+    }
+
+    private int getWidth(int level) {
+        return level < 0 ? mWidth : mLevels[level].width;
+    }
+
+    private int getHeight(int level) {
+        return level < 0 ? mHeight : mLevels[level].height;
+    }
+
+    //给 index 级输入一行上一级的像素
+    private void addRow(int index, int[] source, int offset) {
+        Level level = mLevels[index];
+        int sourceWidth = level.pending.length;
+        if (!level.hasPending) {
+            System.arraycopy(source, offset, level.pending, 0, sourceWidth);
+            level.hasPending = true;
+            return;
+        }
+        level.hasPending = false;
+        downsample(level, level.pending, 0, source, offset);
+        emit(index, level);
+    }
+
+    //算出的一行保存下来并交给下一级
+    private void emit(int index, Level level) {
+        if (level.pixels != null)
+            System.arraycopy(level.row, 0, level.pixels, level.rows * level.width, level.width);
+        level.rows++;
+        if (index + 1 < mLevels.length)
+            addRow(index + 1, level.row, 0);
+    }
+
+    /**
+     * 两行合成一行，second 为空时只有一行
+     */
+    private static void downsample(Level level, int[] first, int firstOffset, int[] second, int secondOffset) {
+        int sourceWidth = level.pending.length;
+        for (int x = 0; x < level.width; x++) {
+            int sx = x * 2;
+            boolean hasRight = sx + 1 < sourceWidth;
+            long a = 0, r = 0, g = 0, b = 0;
+            int count = 0;
+            for (int i = 0; i < 4; i++) {
+                int[] row = i < 2 ? first : second;
+                if (row == null || (i % 2 == 1 && !hasRight))
+                    continue;
+                int color = row[(i < 2 ? firstOffset : secondOffset) + sx + i % 2];
+                int alpha = color >>> 24;
+                a += alpha;
+                r += ((color >> 16) & 0xFF) * alpha;
+                g += ((color >> 8) & 0xFF) * alpha;
+                b += (color & 0xFF) * alpha;
+                count++;
+            }
+            if (a == 0) {
+                level.row[x] = 0;
+            } else {
+                level.row[x] = (int) ((a + count / 2) / count) << 24 | (int) ((r + a / 2) / a) << 16
+                        | (int) ((g + a / 2) / a) << 8 | (int) ((b + a / 2) / a);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bumptech.glide.Glide;
+import com.colin.mosaicdemo.MyApp;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * create by colin
+ * 2020/12/14
+ * <p>
+ * 像素马赛克算法，生成给 {@link MosaicPainter#setMskBitmap(Bitmap, boolean)} 使用的马赛克图。
+ * <p>
+ * 按块行把原图切成若干横向分带，每个分带用 getPixels 读到 int[] 里求块平均，
+ * 分带之间通过 fork-join 分配到所有核心上并行计算。
+ */
+public class MosaicEngine {
+
+    //每个分带最少包含的块行数，太小的话任务调度的开销会超过计算本身
+    private static final int MIN_BAND_BLOCK_ROWS = 2;
+    private static ForkJoinPool sPool;
+    private static Handler sMainHandler;
+
+    public interface OnMosaicReadyListener {
+        void onMosaicReady(Bitmap mosaic);
+    }
+
+    static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    /**
+     * 根据图片尺寸给出一个默认的马赛克块大小
+     */
+    public static int getDefaultBlockSize(int width, int height) {
+        return Math.max(8, Math.max(width, height) / 60);
+    }
+
+    /**
+     * 同步生成马赛克图，会阻塞调用线程直到所有分带计算完成。
+     *
+     * @param src       原图
+     * @param blockSize 马赛克块的边长，单位像素
+     * @return 从 BitmapPool 中取出的 ARGB_8888 马赛克图
+     */
+    public static Bitmap createMosaicBitmap(Bitmap src, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        int width = src.getWidth();
+        int height = src.getHeight();
+        //每个像素都会被覆盖，不需要清空
+        Bitmap dst = Glide.get(MyApp.appContext).getBitmapPool()
+                .getDirty(width, height, Bitmap.Config.ARGB_8888);
+        dst.setHasAlpha(src.hasAlpha());
+        int blockRows = (height + blockSize - 1) / blockSize;
+        ForkJoinPool pool = getPool();
+        int threshold = Math.max(MIN_BAND_BLOCK_ROWS, blockRows / (pool.getParallelism() * 4));
+        pool.invoke(new BandTask(src, dst, blockSize, 0, blockRows, threshold));
+        return dst;
+    }
+
+    /**
+     * 在后台生成马赛克图，结果回调在主线程。
+     */
+    public static void createMosaicBitmapAsync(final Bitmap src, final int blockSize,
+                                               final OnMosaicReadyListener listener) {
+        getPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap mosaic = createMosaicBitmap(src, blockSize);
+                getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onMosaicReady(mosaic);
+                    }
+                });
+            }
+        });
+    }
+
+    static synchronized Handler getMainHandler() {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return sMainHandler;
+    }
+
+    /**
+     * 对 pixels 中 [0, rows) 行的像素按块求平均，结果原地写回。
+     *
+     * @param pixels    行宽为 width 的像素数据，第0行需要和块的上边界对齐
+     * @param width     图片宽度
+     * @param rows      pixels 中的行数
+     * @param blockSize 马赛克块边长
+     */
+    static void pixelate(int[] pixels, int width, int rows, int blockSize) {
+        for (int by = 0; by < rows; by += blockSize) {
+            int bh = Math.min(blockSize, rows - by);
+            for (int bx = 0; bx < width; bx += blockSize) {
+                int bw = Math.min(blockSize, width - bx);
+                int avg = averageBlock(pixels, width, bx, by, bw, bh);
+                for (int y = by; y < by + bh; y++) {
+                    int offset = y * width;
+                    for (int x = bx; x < bx + bw; x++) {
+                        pixels[offset + x] = avg;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 求 pixels 中一个块的平均色
+     *
+     * @param stride pixels 的行宽
+     */
+    static int averageBlock(int[] pixels, int stride, int bx, int by, int bw, int bh) {
+        long a = 0, r = 0, g = 0, b = 0;
+        for (int y = by; y < by + bh; y++) {
+            int offset = y * stride;
+            for (int x = bx; x < bx + bw; x++) {
+                int color = pixels[offset + x];
+                a += color >>> 24;
+                r += (color >> 16) & 0xFF;
+                g += (color >> 8) & 0xFF;
+                b += color & 0xFF;
+            }
+        }
+        int count = bw * bh;
+        return (int) (a / count) << 24 | (int) (r / count) << 16
+                | (int) (g / count) << 8 | (int) (b / count);
+    }
+
+    //负责 [startRow, endRow) 块行的任务，超过阈值时对半拆分
+    private static class BandTask extends RecursiveAction {
+
+        private final Bitmap src;
+        private final Bitmap dst;
+        private final int blockSize;
+        private final int startRow, endRow;
+        private final int threshold;
+
+        BandTask(Bitmap src, Bitmap dst, int blockSize, int startRow, int endRow, int threshold) {
+            this.src = src;
+            this.dst = dst;
+            this.blockSize = blockSize;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= threshold) {
+                computeBand();
+                return;
+            }
+            int mid = (startRow + endRow) >>> 1;
+            invokeAll(new BandTask(src, dst, blockSize, startRow, mid, threshold),
+                    new BandTask(src, dst, blockSize, mid, endRow, threshold));
+        }
+
+        private void computeBand() {
+            int width = src.getWidth();
+            int top = startRow * blockSize;
+            int bottom = Math.min(src.getHeight(), endRow * blockSize);
+            int rows = bottom - top;
+            int[] pixels = new int[width * rows];
+            src.getPixels(pixels, 0, width, 0, top, width, rows);
+            pixelate(pixels, width, rows, blockSize);
+            //不同分带写的是不相交的行，加锁只是为了避免并发修改同一个 Bitmap 对象
+            synchronized (dst) {
+                dst.setPixels(pixels, 0, width, 0, top, width, rows);
+            }
+        }
+    }
+}
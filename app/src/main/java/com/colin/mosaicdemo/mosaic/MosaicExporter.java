@@ -0,0 +1,414 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * create by colin
+ * 2020/12/28
+ * <p>
+ * 按原图分辨率导出编辑结果。原图通过 {@link BitmapRegionDecoder} 按横向分带读取，每个分带重新画一遍覆盖率，
+ * 用这个分辨率下的马赛克或纹理合成后马上编码成 PNG 写出去。内存里同时只有几个分带大小的图，
+ * 不需要一张和原图一样大的结果图。
+ * <p>
+ * 笔画按原图和编辑图的比例放大后重新栅格化，边缘和马赛克块都是原图的精度。
+ * 已经合并到底图的笔画只有编辑分辨率的覆盖率，放大时做插值。
+ * <p>
+ * 需要预览图和缩略图时，合成好的分带在编码的同时送进 {@link MipChain} 逐级缩小，
+ * 一遍导出得到所有尺寸，不需要再把保存好的大图解码一次。
+ * <p>
+ * 由 {@link MosaicPainter#export(Source, OutputStream, ExportListener)} 创建，创建时复制好编辑状态，
+ * 之后继续编辑不会影响导出结果。
+ */
+public class MosaicExporter {
+
+    //一个分带的目标字节数，按 ARGB_8888 计算
+    private static final int BAND_BYTES = 4 * 1024 * 1024;
+    private static final int PNG_LEVEL = 6;
+    private static ExecutorService sExecutor;
+
+    public interface Source {
+        /**
+         * 在导出线程中调用，打开原图，读完后由导出器关闭
+         */
+        InputStream open() throws IOException;
+    }
+
+    public interface ExportListener {
+        /**
+         * 以下都在主线程回调
+         *
+         * @param percent 0 到 100
+         */
+        void onExportProgress(int percent);
+
+        /**
+         * @param preview   预览图，没有请求时为空，调用方用完后可以还给 BitmapPool
+         * @param thumbnail 缩略图，同上
+         */
+        void onExportComplete(Bitmap preview, Bitmap thumbnail);
+
+        void onExportFailed(Exception e);
+    }
+
+    private final BitmapPool mPool;
+    //编辑时的原图尺寸，笔画坐标都在这个尺寸下
+    private final int mWorkWidth, mWorkHeight;
+    private final List<MosaicPath> mPaths;
+    //底图的副本，导出完还给 pool，没有合并过时为空
+    private final TiledSurface mBase;
+    //没有底图时重画所有路径之前要画的内容
+    private final TiledSurface.TileDrawer mPreDrawer;
+    private final RectF mPreDrawBounds;
+    private final int mMskModel;
+    private final int mBlockSize;
+    private final Bitmap mTexture;
+    private final Paint mPaintPath;
+    private final Paint mPaintClean;
+    private final Paint mPaintBase = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Path mScratchPath = new Path();
+    private final RectF mWorkBand = new RectF();
+    //预览图和缩略图的长边上限，0 表示不需要
+    private final int mPreviewSize, mThumbnailSize;
+    //导出线程生成，完成时交给主线程
+    private Bitmap mPreview, mThumbnail;
+
+    /**
+     * @param paths      按绘制顺序排列，导出器持有这个列表
+     * @param base       底图的副本，导出器负责释放
+     * @param preDrawer  preDrawBounds 不为空时使用
+     * @param blockSize  马赛克模式的块大小，编辑图像素，必须大于 0
+     * @param texture    纹理模式的纹理，马赛克模式为空
+     * @param paintPath  导出线程专用的路径画笔
+     * @param previewSize   预览图的长边上限，0 表示不需要
+     * @param thumbnailSize 缩略图的长边上限，0 表示不需要
+     */
+    MosaicExporter(BitmapPool pool, int workWidth, int workHeight, List<MosaicPath> paths, TiledSurface base,
+                   TiledSurface.TileDrawer preDrawer, RectF preDrawBounds, int mskModel, int blockSize,
+                   Bitmap texture, Paint paintPath, Paint paintClean, int previewSize, int thumbnailSize) {
+        mPool = pool;
+        mWorkWidth = workWidth;
+        mWorkHeight = workHeight;
+        mPaths = paths;
+        mBase = base;
+        mPreDrawer = preDrawer;
+        mPreDrawBounds = preDrawBounds;
+        mMskModel = mskModel;
+        if (mskModel == MosaicPath.TYPE_SMUDGE && blockSize <= 0)
+            throw new IllegalArgumentException("block size " + blockSize);
+        mBlockSize = blockSize;
+        mTexture = texture;
+        mPaintPath = paintPath;
+        mPaintClean = paintClean;
+        mPreviewSize = previewSize;
+        mThumbnailSize = thumbnailSize;
+    }
+
+    static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            //导出主要是解码和压缩，同一时间只做一个，避免几份分带同时占内存
+            sExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sExecutor;
+    }
+
+    /**
+     * 在后台导出，完成或失败后关闭 out
+     */
+    void start(final Source source, final OutputStream out, final ExportListener listener) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Exception error = null;
+                try {
+                    export(source, out, listener);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = e;
+                } finally {
+                    if (mBase != null)
+                        mBase.clear();
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        if (error == null)
+                            error = e;
+                    }
+                }
+                final Exception result = error;
+                MosaicEngine.getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result == null) {
+                            listener.onExportComplete(mPreview, mThumbnail);
+                        } else {
+                            listener.onExportFailed(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void export(Source source, OutputStream out, ExportListener listener) throws IOException {
+        BitmapRegionDecoder decoder;
+        InputStream in = source.open();
+        try {
+            decoder = BitmapRegionDecoder.newInstance(in, false);
+        } finally {
+            in.close();
+        }
+        if (decoder == null)
+            throw new IOException("unsupported image");
+        Bitmap band = null;
+        Bitmap coverage = null;
+        Bitmap mosaic = null;
+        PngStreamEncoder encoder = null;
+        boolean finished = false;
+        try {
+            int width = decoder.getWidth();
+            int height = decoder.getHeight();
+            float scaleX = width / (float) mWorkWidth;
+            float scaleY = height / (float) mWorkHeight;
+            //马赛克块也按比例放大，和编辑时看到的块数一致
+            int blockSize = Math.max(1, Math.round(mBlockSize * scaleX));
+            int bandHeight = getBandHeight(width, height, blockSize);
+            RectF[] strokeBounds = getStrokeBounds(scaleX, scaleY);
+            MipChain mipChain = createMipChain(width, height);
+
+            band = mPool.getDirty(width, bandHeight, Bitmap.Config.ARGB_8888);
+            coverage = mPool.get(width, bandHeight, Bitmap.Config.ALPHA_8);
+            Canvas coverageCanvas = new Canvas(coverage);
+            Canvas bandCanvas = new Canvas();
+            int[] pixels = new int[width * bandHeight];
+            //马赛克和编辑时一样不开启过滤，纹理需要放大所以开启
+            Paint compositePaint = new Paint(Paint.DITHER_FLAG);
+            BitmapShader shader = null;
+            Matrix textureMatrix = null;
+            if (mMskModel == MosaicPath.TYPE_SMUDGE) {
+                mosaic = mPool.getDirty(width, bandHeight, Bitmap.Config.ARGB_8888);
+                shader = new BitmapShader(mosaic, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            } else if (mTexture != null) {
+                shader = new BitmapShader(mTexture, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                textureMatrix = new Matrix();
+                compositePaint.setFilterBitmap(true);
+            }
+            compositePaint.setShader(shader);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+            Rect region = new Rect();
+            RectF bandBounds = new RectF();
+            int lastPercent = -1;
+            for (int top = 0; top < height; top += bandHeight) {
+                int rows = Math.min(bandHeight, height - top);
+                region.set(0, top, width, top + rows);
+                //复用同一张图，最后一个分带比它矮时只用上面几行
+                options.inBitmap = band;
+                Bitmap decoded = decoder.decodeRegion(region, options);
+                if (decoded == null)
+                    throw new IOException("decode failed at row " + top);
+                if (decoded != band) {
+                    mPool.put(band);
+                    band = decoded;
+                }
+                if (encoder == null)
+                    encoder = new PngStreamEncoder(out, width, height, band.hasAlpha(), PNG_LEVEL,
+                            MosaicEngine.getPool());
+
+                bandBounds.set(0, top, width, top + rows);
+                if (shader != null && drawCoverage(coverageCanvas, bandBounds, strokeBounds, scaleX, scaleY)) {
+                    if (mosaic != null) {
+                        //分带的上边界和块对齐，直接在分带内求块平均
+                        band.getPixels(pixels, 0, width, 0, 0, width, rows);
+                        MosaicEngine.pixelate(pixels, width, rows, blockSize);
+                        mosaic.setHasAlpha(band.hasAlpha());
+                        mosaic.setPixels(pixels, 0, width, 0, 0, width, rows);
+                    } else {
+                        textureMatrix.setScale(scaleX, scaleY);
+                        textureMatrix.postTranslate(0, -top);
+                        shader.setLocalMatrix(textureMatrix);
+                    }
+                    bandCanvas.setBitmap(band);
+                    bandCanvas.drawBitmap(coverage, 0, 0, compositePaint);
+                    bandCanvas.setBitmap(null);
+                }
+                band.getPixels(pixels, 0, width, 0, 0, width, rows);
+                encoder.writeRows(pixels, 0, width, rows);
+                if (mipChain != null)
+                    mipChain.addRows(pixels, 0, width, rows);
+
+                final int percent = (int) ((top + rows) * 100L / height);
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    postProgress(listener, percent);
+                }
+            }
+            encoder.finish();
+            finished = true;
+            if (mipChain != null) {
+                mipChain.finish();
+                int index = 0;
+                if (mPreviewSize > 0)
+                    mPreview = createOutput(mipChain, index++, band.hasAlpha());
+                if (mThumbnailSize > 0)
+                    mThumbnail = createOutput(mipChain, index, band.hasAlpha());
+            }
+        } finally {
+            if (encoder != null && !finished)
+                encoder.release();
+            decoder.recycle();
+            if (band != null)
+                mPool.put(band);
+            if (coverage != null)
+                mPool.put(coverage);
+            if (mosaic != null)
+                mPool.put(mosaic);
+        }
+    }
+
+    //没有请求预览图和缩略图时为空
+    private MipChain createMipChain(int width, int height) {
+        if (mPreviewSize <= 0 && mThumbnailSize <= 0)
+            return null;
+        int[] sizes;
+        if (mPreviewSize > 0 && mThumbnailSize > 0) {
+            sizes = new int[]{mPreviewSize, mThumbnailSize};
+        } else {
+            sizes = new int[]{Math.max(mPreviewSize, mThumbnailSize)};
+        }
+        return new MipChain(width, height, sizes);
+    }
+
+    private Bitmap createOutput(MipChain mipChain, int index, boolean hasAlpha) {
+        int width = mipChain.getOutputWidth(index);
+        int height = mipChain.getOutputHeight(index);
+        Bitmap bitmap = mPool.getDirty(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setHasAlpha(hasAlpha);
+        bitmap.setPixels(mipChain.getOutputPixels(index), 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /**
+     * 把一张图编码成 PNG，按行分段在所有核心上并行压缩，比 {@link Bitmap#compress} 快。
+     * 在调用线程中完成，不会关闭 out。
+     */
+    public static void writePng(final Bitmap bitmap, OutputStream out) throws IOException {
+        final int width = bitmap.getWidth();
+        PngStreamEncoder.encode(new PngStreamEncoder.RowSource() {
+            @Override
+            public void readRows(int top, int rows, int[] out, int stride) {
+                bitmap.getPixels(out, 0, stride, 0, top, width, rows);
+            }
+        }, width, bitmap.getHeight(), bitmap.hasAlpha(), PNG_LEVEL, MosaicEngine.getPool(), out);
+    }
+
+    /**
+     * 分带高度是块大小的整数倍，每个马赛克块都完整地落在一个分带里
+     */
+    static int getBandHeight(int width, int height, int blockSize) {
+        int rows = Math.max(1, BAND_BYTES / (width * 4));
+        rows = Math.max(blockSize, rows / blockSize * blockSize);
+        return Math.min(rows, height);
+    }
+
+    //每条笔画在原图坐标下包含画笔宽度的范围
+    private RectF[] getStrokeBounds(float scaleX, float scaleY) {
+        RectF[] bounds = new RectF[mPaths.size()];
+        for (int i = 0; i < bounds.length; i++) {
+            MosaicPath path = mPaths.get(i);
+            RectF rect = new RectF();
+            synchronized (path) {
+                float half = path.size / 2f + 2;
+                rect.set((path.bounds.left - half) * scaleX, (path.bounds.top - half) * scaleY,
+                        (path.bounds.right + half) * scaleX, (path.bounds.bottom + half) * scaleY);
+            }
+            bounds[i] = rect;
+        }
+        return bounds;
+    }
+
+    /**
+     * 在分带的覆盖率图上画出和它相交的底图和笔画
+     *
+     * @param band 分带在原图中的范围
+     * @return 分带内什么都没画时返回 false，不需要合成
+     */
+    private boolean drawCoverage(Canvas canvas, RectF band, RectF[] strokeBounds, float scaleX, float scaleY) {
+        mWorkBand.set(band.left / scaleX, band.top / scaleY, band.right / scaleX, band.bottom / scaleY);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        canvas.save();
+        canvas.translate(0, -band.top);
+        canvas.scale(scaleX, scaleY);
+        canvas.clipRect(mWorkBand);
+        boolean drawn = false;
+        if (mBase != null) {
+            //底图里已经包含了预先画的内容
+            drawn = hasBaseTiles(mWorkBand);
+            if (drawn)
+                mBase.drawTo(canvas, 0, 0, mPaintBase);
+        } else if (mPreDrawBounds != null && RectF.intersects(mPreDrawBounds, mWorkBand)) {
+            mPreDrawer.draw(canvas);
+            drawn = true;
+        }
+        for (int i = 0; i < mPaths.size(); i++) {
+            if (!RectF.intersects(strokeBounds[i], band))
+                continue;
+            MosaicPath path = mPaths.get(i);
+            //下面还什么都没有的橡皮擦不用画
+            if (path.type == MosaicPath.TYPE_CLEAN && !drawn)
+                continue;
+            Paint paint = path.type == MosaicPath.TYPE_CLEAN ? mPaintClean : mPaintPath;
+            paint.setStrokeWidth(path.size);
+            path.copyPath(mScratchPath);
+            canvas.drawPath(mScratchPath, paint);
+            drawn |= path.type != MosaicPath.TYPE_CLEAN;
+        }
+        canvas.restore();
+        return drawn;
+    }
+
+    private boolean hasBaseTiles(RectF workBand) {
+        int size = TiledSurface.TILE_SIZE;
+        int top = Math.max(0, (int) workBand.top / size);
+        int bottom = Math.min(mBase.getRows() - 1, (int) Math.ceil(workBand.bottom - 1) / size);
+        for (int row = top; row <= bottom; row++) {
+            for (int col = 0; col < mBase.getCols(); col++) {
+                if (mBase.getTile(col, row) != null)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static void postProgress(final ExportListener listener, final int percent) {
+        MosaicEngine.getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onExportProgress(percent);
+            }
+        });
+    }
+}
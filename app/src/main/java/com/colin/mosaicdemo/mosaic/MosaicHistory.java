@@ -0,0 +1,184 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * create by colin
+ * 2020/12/23
+ * <p>
+ * 笔画的撤销记录。每条笔画第一次画到某个路径瓦片之前，先把这个瓦片压缩保存下来，
+ * 撤销时只还原这些瓦片，不需要重画所有笔画。
+ * <p>
+ * 记录的总字节数有上限，超出时丢弃最早的笔画的记录，这些笔画撤销时只能重画所有路径。
+ * 只在渲染线程中使用。
+ */
+class MosaicHistory {
+
+    //瓦片原本不存在
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int mMaxBytes;
+    private int mBytes;
+    //按笔画第一次绘制的顺序排列，MosaicPath 没有重写 equals，按对象区分
+    private final LinkedHashMap<MosaicPath, StrokeRecord> mRecords = new LinkedHashMap<>();
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+    private final Rect mBounds = new Rect();
+    private final Rect mRange = new Rect();
+    private ByteBuffer mBuffer;
+    private byte[] mCompressed;
+
+    //一条笔画画之前的瓦片，key 是瓦片的序号
+    private static class StrokeRecord {
+        final SparseArray<byte[]> tiles = new SparseArray<>();
+        int bytes;
+    }
+
+    MosaicHistory(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 默认使用堆上限的 1/16
+     */
+    static int getDefaultMaxBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    /**
+     * 在 path 画到 bounds 范围之前调用，保存这条笔画还没保存过的瓦片。
+     */
+    void capture(MosaicPath path, TiledSurface surface, RectF bounds) {
+        StrokeRecord record = obtainRecord(path);
+        bounds.roundOut(mBounds);
+        if (!surface.getTileRange(mBounds, mRange))
+            return;
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                int index = row * surface.getCols() + col;
+                if (record.tiles.get(index) != null)
+                    continue;
+                byte[] data = compress(surface.getTile(col, row));
+                record.tiles.put(index, data);
+                record.bytes += data.length;
+                mBytes += data.length;
+            }
+        }
+        trim(path);
+    }
+
+    /**
+     * 笔画没有改动任何瓦片（比如画在空白处的橡皮擦），也留一条空记录，撤销时不需要重画
+     */
+    void mark(MosaicPath path) {
+        obtainRecord(path);
+    }
+
+    private StrokeRecord obtainRecord(MosaicPath path) {
+        StrokeRecord record = mRecords.get(path);
+        if (record == null) {
+            record = new StrokeRecord();
+            mRecords.put(path, record);
+        }
+        return record;
+    }
+
+    /**
+     * 把 path 画之前的瓦片还原，记录随之删除。
+     *
+     * @param dirty 还原的范围会合并进来
+     * @return 没有这条笔画的记录时返回 false，需要重画所有路径
+     */
+    boolean restore(MosaicPath path, TiledSurface surface, RectF dirty) {
+        StrokeRecord record = mRecords.remove(path);
+        if (record == null)
+            return false;
+        mBytes -= record.bytes;
+        int size = TiledSurface.TILE_SIZE;
+        for (int i = 0; i < record.tiles.size(); i++) {
+            int index = record.tiles.keyAt(i);
+            int col = index % surface.getCols();
+            int row = index / surface.getCols();
+            byte[] data = record.tiles.valueAt(i);
+            if (data == EMPTY) {
+                surface.releaseTile(col, row);
+            } else {
+                decompress(data, surface.obtainTile(col, row));
+            }
+            dirty.union(col * size, row * size, (col + 1) * size, (row + 1) * size);
+        }
+        return true;
+    }
+
+    void remove(MosaicPath path) {
+        StrokeRecord record = mRecords.remove(path);
+        if (record != null)
+            mBytes -= record.bytes;
+    }
+
+    void clear() {
+        mRecords.clear();
+        mBytes = 0;
+    }
+
+    //超出上限时从最早的笔画开始丢弃，正在记录的笔画保留
+    private void trim(MosaicPath current) {
+        Iterator<Map.Entry<MosaicPath, StrokeRecord>> iterator = mRecords.entrySet().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<MosaicPath, StrokeRecord> entry = iterator.next();
+            if (entry.getKey() == current)
+                continue;
+            mBytes -= entry.getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    private byte[] compress(Bitmap tile) {
+        if (tile == null)
+            return EMPTY;
+        int length = tile.getByteCount();
+        ensureBuffer(length);
+        mBuffer.clear();
+        tile.copyPixelsToBuffer(mBuffer);
+        mDeflater.reset();
+        mDeflater.setInput(mBuffer.array(), 0, length);
+        mDeflater.finish();
+        int size = mDeflater.deflate(mCompressed);
+        return Arrays.copyOf(mCompressed, size);
+    }
+
+    private void decompress(byte[] data, Bitmap tile) {
+        int length = tile.getByteCount();
+        ensureBuffer(length);
+        mInflater.reset();
+        mInflater.setInput(data);
+        try {
+            mInflater.inflate(mBuffer.array(), 0, length);
+        } catch (DataFormatException e) {
+            //自己压缩的数据，不会出现
+            throw new IllegalStateException(e);
+        }
+        mBuffer.clear();
+        tile.copyPixelsFromBuffer(mBuffer);
+    }
+
+    private void ensureBuffer(int length) {
+        if (mBuffer == null || mBuffer.capacity() < length) {
+            mBuffer = ByteBuffer.allocate(length);
+            //最坏情况下 deflate 的输出比输入略大
+            mCompressed = new byte[length + length / 1000 + 64];
+        }
+    }
+}
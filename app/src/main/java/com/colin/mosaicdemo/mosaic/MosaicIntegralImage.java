@@ -0,0 +1,231 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+
+import com.bumptech.glide.Glide;
+import com.colin.mosaicdemo.MyApp;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * create by colin
+ * 2020/12/15
+ * <p>
+ * 原图的积分图（每个通道一张 summed-area table），有了它任意块大小的马赛克都可以
+ * 用每块4次查表求出块平均，不需要再遍历块内的像素。
+ * <p>
+ * 积分值用 int 保存，允许溢出：块内总和不超过 255 * 块面积，远小于 2^32，
+ * 按补码相减之后再当作无符号数就是正确结果，这样大图也不需要 long 数组。
+ */
+public class MosaicIntegralImage {
+
+    //每个任务处理的最少行/列数
+    private static final int MIN_TASK_SPAN = 64;
+
+    private final int width;
+    private final int height;
+    //行宽为 width + 1，第0行第0列全为0
+    private final int stride;
+    private final int[] sumR, sumG, sumB;
+    //原图不透明时为 null
+    private final int[] sumA;
+
+    private MosaicIntegralImage(int width, int height, boolean hasAlpha) {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        int size = stride * (height + 1);
+        sumR = new int[size];
+        sumG = new int[size];
+        sumB = new int[size];
+        sumA = hasAlpha ? new int[size] : null;
+    }
+
+    /**
+     * 构建积分图，先按行带并行求行前缀和，再按列带并行累加列。会阻塞调用线程。
+     *
+     * @param src 原图
+     */
+    public static MosaicIntegralImage create(Bitmap src) {
+        MosaicIntegralImage image = new MosaicIntegralImage(src.getWidth(), src.getHeight(), src.hasAlpha());
+        ForkJoinPool pool = MosaicEngine.getPool();
+        pool.invoke(new RowTask(image, src, 0, image.height));
+        pool.invoke(new ColumnTask(image, 1, image.stride));
+        return image;
+    }
+
+    /**
+     * 在后台构建积分图，结果回调在主线程。
+     */
+    public static void createAsync(final Bitmap src, final OnIntegralImageReadyListener listener) {
+        MosaicEngine.getPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                final MosaicIntegralImage image = create(src);
+                MosaicEngine.getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onIntegralImageReady(image);
+                    }
+                });
+            }
+        });
+    }
+
+    public interface OnIntegralImageReadyListener {
+        void onIntegralImageReady(MosaicIntegralImage image);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * 计算块图，块图里一个像素就是原图中一个 blockSize * blockSize 块的平均色，
+     * 使用时把它放大 blockSize 倍即为马赛克图。
+     *
+     * @param blockSize 马赛克块边长
+     * @return 从 BitmapPool 中取出的块图，宽高为原图宽高除以 blockSize 向上取整
+     */
+    public Bitmap createBlockBitmap(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        int cols = getBlockCount(width, blockSize);
+        int rows = getBlockCount(height, blockSize);
+        int[] pixels = new int[cols * rows];
+        fillBlocks(pixels, blockSize, 0, 0, cols, rows);
+        Bitmap blocks = Glide.get(MyApp.appContext).getBitmapPool()
+                .getDirty(cols, rows, Bitmap.Config.ARGB_8888);
+        blocks.setHasAlpha(sumA != null);
+        blocks.setPixels(pixels, 0, cols, 0, 0, cols, rows);
+        return blocks;
+    }
+
+    /**
+     * 计算一片块区域的平均色
+     *
+     * @param out       输出，行宽为 cols
+     * @param blockSize 马赛克块边长
+     * @param col       起始块列
+     * @param row       起始块行
+     * @param cols      块列数
+     * @param rows      块行数
+     */
+    void fillBlocks(int[] out, int blockSize, int col, int row, int cols, int rows) {
+        for (int j = 0; j < rows; j++) {
+            int y0 = (row + j) * blockSize;
+            int y1 = Math.min(height, y0 + blockSize);
+            for (int i = 0; i < cols; i++) {
+                int x0 = (col + i) * blockSize;
+                int x1 = Math.min(width, x0 + blockSize);
+                long count = (long) (x1 - x0) * (y1 - y0);
+                int a = sumA == null ? 0xFF : average(sumA, x0, y0, x1, y1, count);
+                out[j * cols + i] = a << 24
+                        | average(sumR, x0, y0, x1, y1, count) << 16
+                        | average(sumG, x0, y0, x1, y1, count) << 8
+                        | average(sumB, x0, y0, x1, y1, count);
+            }
+        }
+    }
+
+    private int average(int[] sum, int x0, int y0, int x1, int y1, long count) {
+        int total = sum[y1 * stride + x1] - sum[y0 * stride + x1]
+                - sum[y1 * stride + x0] + sum[y0 * stride + x0];
+        return (int) ((total & 0xFFFFFFFFL) / count);
+    }
+
+    public static int getBlockCount(int length, int blockSize) {
+        return (length + blockSize - 1) / blockSize;
+    }
+
+    //第一步：[startY, endY) 行各自求行前缀和
+    private static class RowTask extends RecursiveAction {
+
+        private final MosaicIntegralImage image;
+        private final Bitmap src;
+        private final int startY, endY;
+
+        RowTask(MosaicIntegralImage image, Bitmap src, int startY, int endY) {
+            this.image = image;
+            this.src = src;
+            this.startY = startY;
+            this.endY = endY;
+        }
+
+        @Override
+        protected void compute() {
+            if (endY - startY > MIN_TASK_SPAN) {
+                int mid = (startY + endY) >>> 1;
+                invokeAll(new RowTask(image, src, startY, mid), new RowTask(image, src, mid, endY));
+                return;
+            }
+            int width = image.width;
+            int stride = image.stride;
+            int[] pixels = new int[width];
+            for (int y = startY; y < endY; y++) {
+                src.getPixels(pixels, 0, width, 0, y, width, 1);
+                int offset = (y + 1) * stride + 1;
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int x = 0; x < width; x++) {
+                    int color = pixels[x];
+                    r += (color >> 16) & 0xFF;
+                    g += (color >> 8) & 0xFF;
+                    b += color & 0xFF;
+                    image.sumR[offset + x] = r;
+                    image.sumG[offset + x] = g;
+                    image.sumB[offset + x] = b;
+                    if (image.sumA != null) {
+                        a += color >>> 24;
+                        image.sumA[offset + x] = a;
+                    }
+                }
+            }
+        }
+    }
+
+    //第二步：[startX, endX) 列从上往下累加
+    private static class ColumnTask extends RecursiveAction {
+
+        private final MosaicIntegralImage image;
+        private final int startX, endX;
+
+        ColumnTask(MosaicIntegralImage image, int startX, int endX) {
+            this.image = image;
+            this.startX = startX;
+            this.endX = endX;
+        }
+
+        @Override
+        protected void compute() {
+            if (endX - startX > MIN_TASK_SPAN) {
+                int mid = (startX + endX) >>> 1;
+                invokeAll(new ColumnTask(image, startX, mid), new ColumnTask(image, mid, endX));
+                return;
+            }
+            accumulate(image.sumR);
+            accumulate(image.sumG);
+            accumulate(image.sumB);
+            if (image.sumA != null) {
+                accumulate(image.sumA);
+            }
+        }
+
+        private void accumulate(int[] sum) {
+            int stride = image.stride;
+            //按行推进，保证每次访问的都是连续内存
+            for (int y = 2; y <= image.height; y++) {
+                int offset = y * stride;
+                int prev = offset - stride;
+                for (int x = startX; x < endX; x++) {
+                    sum[offset + x] += sum[prev + x];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * create by colin
+ * 2020/12/27
+ * <p>
+ * 追加写的编辑日志。画完的笔画、撤销重做、清空和模式切换各写一条记录，写入和 fsync 都在后台线程，
+ * fsync 攒够一批或者等一小段时间再做，主线程不会等待 IO。
+ * 拖动滑块时模式会连续变化，模式记录等停下来或者有别的记录时才提交，连续的切换只写最后一条。
+ * <p>
+ * 记录数达到上限时把当前状态写成快照（{@link MosaicSession} 的格式，只有笔画没有底图），日志从空开始。
+ * 启动时读取快照再回放日志，尾部写到一半的记录长度或校验不对，直接丢弃。
+ * <p>
+ * 日志头：int MAGIC, int VERSION, long 代数, int 原图宽, int 高。代数为 n 时对应的快照是 snapshot-n，0 表示没有快照。
+ * 记录：int 长度（类型加内容）, byte 类型, 内容, int CRC32（类型加内容）。
+ * 笔画和块大小和快照一样按原图保存，工作图尺寸不同也可以回放。
+ */
+class MosaicJournal {
+
+    private static final String TAG = "MosaicJournal";
+    private static final int MAGIC = 0x4D4A524E; //MJRN
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    static final int RECORD_STROKE = 1;
+    static final int RECORD_UNDO = 2;
+    static final int RECORD_REDO = 3;
+    static final int RECORD_CLEAR_REDO = 4;
+    static final int RECORD_RESET = 5;
+    static final int RECORD_MODE = 6;
+
+    //攒够这么多条记录，或者第一条没有 fsync 的记录等了这么久之后 fsync
+    private static final int SYNC_BATCH = 32;
+    private static final long SYNC_DELAY_MS = 1000;
+    //最后一次切换模式之后等这么久没有新的切换才提交模式记录
+    private static final long MODE_DELAY_MS = 300;
+    //日志超过这么多条记录时压缩成快照
+    private static final int COMPACT_RECORDS = 1000;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final File mDir;
+    private final File mJournalFile;
+    private final int mWidth, mHeight;
+    private final int mWorkWidth, mWorkHeight;
+    //工作图一个像素对应原图的边长
+    private final float mScaleX, mScaleY;
+
+    //以下在 load 中初始化，之后只在写入线程中使用
+    private long mGeneration;
+    //日志中有效部分的长度，后面是写到一半的记录
+    private long mValidLength;
+    private int mRecordCount;
+    //回放出的状态，笔画是编码好的数据，块大小是原图像素
+    private final ArrayList<ByteBuffer> mPaths = new ArrayList<>();
+    private final ArrayList<ByteBuffer> mRedoPaths = new ArrayList<>();
+    private int mCurrentModel, mSelectMskModel, mBlockSize;
+    private Uri mTextureUri;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private final CRC32 mCrc = new CRC32();
+    private int mUnsynced;
+    private boolean mSyncPosted;
+    private boolean mFailed;
+
+    private HandlerThread mThread;
+    //主线程提交记录用，关闭后为空
+    private Handler mHandler;
+    //写入线程自己用的 handler，关闭后也不会清空，已经提交的任务还要用它
+    private Handler mWriteHandler;
+    //还没提交的模式记录，只在主线程中使用
+    private ByteBuffer mPendingMode;
+
+    private final Runnable mModeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushMode();
+        }
+    };
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mSyncPosted = false;
+            try {
+                sync();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    };
+
+    /**
+     * @param dir       日志和快照所在的目录，一个目录只对应一个编辑
+     * @param width     原图尺寸，和日志里的不一致时丢弃旧的日志
+     * @param workWidth 编辑用的工作图尺寸，写入时笔画从工作图换算到原图，回放时换算回来
+     */
+    MosaicJournal(File dir, int width, int height, int workWidth, int workHeight) {
+        mDir = dir;
+        mJournalFile = new File(dir, "journal");
+        mWidth = width;
+        mHeight = height;
+        mWorkWidth = workWidth;
+        mWorkHeight = workHeight;
+        mScaleX = width / (float) workWidth;
+        mScaleY = height / (float) workHeight;
+    }
+
+    /**
+     * 在调用线程中读取快照并回放日志，需要在 {@link #start()} 之前调用。
+     *
+     * @return 没有日志或者原图尺寸不一致时为空
+     */
+    MosaicSession load() throws IOException {
+        if (!mJournalFile.exists())
+            return null;
+        MappedByteBuffer map;
+        RandomAccessFile raf = new RandomAccessFile(mJournalFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (map.remaining() < HEADER_SIZE || map.getInt() != MAGIC || map.getInt() != VERSION)
+            throw new IOException("not a journal");
+        long generation = map.getLong();
+        if (map.getInt() != mWidth || map.getInt() != mHeight)
+            return null;
+        if (generation > 0) {
+            MosaicSession snapshot = MosaicSession.read(getSnapshotFile(generation), mWorkWidth, mWorkHeight);
+            mPaths.addAll(snapshot.getPathEntries());
+            mRedoPaths.addAll(snapshot.getRedoEntries());
+            mCurrentModel = snapshot.getCurrentModel();
+            mSelectMskModel = snapshot.getSelectMskModel();
+            mBlockSize = snapshot.getSourceBlockSize();
+            mTextureUri = snapshot.getTextureUri();
+        }
+        CRC32 crc = new CRC32();
+        //CRC32 逐字节更新每次都是一次 native 调用，先整块复制出来再一次算完
+        byte[] bytes = new byte[256];
+        int valid = map.position();
+        int count = 0;
+        while (map.remaining() >= 4) {
+            int length = map.getInt();
+            if (length < 1 || map.remaining() < length + 4)
+                break;
+            ByteBuffer record = map.duplicate();
+            record.limit(map.position() + length);
+            record = record.slice();
+            map.position(map.position() + length);
+            if (bytes.length < length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            record.duplicate().get(bytes, 0, length);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if (map.getInt() != (int) crc.getValue())
+                break;
+            int type = record.get();
+            apply(type, record.slice());
+            valid = map.position();
+            count++;
+        }
+        mGeneration = generation;
+        mValidLength = valid;
+        mRecordCount = count;
+        if (generation == 0 && count == 0)
+            return null;
+        return MosaicSession.create(mWidth, mHeight, mWorkWidth, mWorkHeight, mCurrentModel, mSelectMskModel,
+                mBlockSize, mTextureUri, mPaths, mRedoPaths);
+    }
+
+    /**
+     * 启动写入线程。load 没有读到有效的日志时，从一个空日志开始。
+     */
+    void start() {
+        mThread = new HandlerThread("mosaic-journal", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mWriteHandler = mHandler;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 记录一条画完的笔画，只能是由点组成的笔画，人像轮廓之类的形状不能记录
+     */
+    void appendStroke(MosaicPath path) {
+        append(RECORD_STROKE, MosaicSession.encodePath(path, mScaleX, mScaleY));
+    }
+
+    /**
+     * 撤销、重做、清空重做和清空，没有内容的记录
+     */
+    void append(int type) {
+        append(type, EMPTY);
+    }
+
+    /**
+     * 记录模式，等一小段时间没有新的切换再提交，之间的切换只保留最后一次
+     *
+     * @param blockSize 工作图像素
+     */
+    void appendMode(int currentModel, int selectMskModel, int blockSize, Uri textureUri) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            MosaicSession.Writer writer = new MosaicSession.Writer(Channels.newChannel(out), 64);
+            writer.putInt(currentModel);
+            writer.putInt(selectMskModel);
+            writer.putInt(blockSize > 0 ? Math.round(blockSize * mScaleX) : 0);
+            MosaicSession.writeUri(writer, textureUri);
+            writer.flush();
+        } catch (IOException e) {
+            //写到内存里，不会出现
+            throw new IllegalStateException(e);
+        }
+        if (mHandler == null)
+            return;
+        mPendingMode = ByteBuffer.wrap(out.toByteArray());
+        Handler handler = MosaicEngine.getMainHandler();
+        handler.removeCallbacks(mModeRunnable);
+        handler.postDelayed(mModeRunnable, MODE_DELAY_MS);
+    }
+
+    //提交还在等待的模式记录，之后的记录排在它后面
+    private void flushMode() {
+        if (mPendingMode == null)
+            return;
+        MosaicEngine.getMainHandler().removeCallbacks(mModeRunnable);
+        ByteBuffer payload = mPendingMode;
+        mPendingMode = null;
+        post(RECORD_MODE, payload);
+    }
+
+    /**
+     * 在后台把当前状态写成快照，清空日志
+     */
+    void compact() {
+        if (mHandler == null)
+            return;
+        flushMode();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFailed || mRecordCount == 0)
+                    return;
+                try {
+                    compactNow();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 写完已经提交的记录后关闭，不会等待写入线程
+     */
+    void close() {
+        if (mHandler == null)
+            return;
+        flushMode();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWriteHandler.removeCallbacks(mSyncRunnable);
+                mSyncPosted = false;
+                try {
+                    if (!mFailed)
+                        sync();
+                    if (mFile != null)
+                        mFile.close();
+                } catch (IOException e) {
+                    fail(e);
+                }
+                mFile = null;
+                mChannel = null;
+            }
+        });
+        mThread.quitSafely();
+        mHandler = null;
+    }
+
+    private void append(int type, ByteBuffer payload) {
+        flushMode();
+        post(type, payload);
+    }
+
+    private void post(final int type, final ByteBuffer payload) {
+        if (mHandler == null)
+            return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write(type, payload);
+            }
+        });
+    }
+
+    //以下在写入线程中执行
+
+    private void open() throws IOException {
+        if (mValidLength == 0) {
+            //没有可用的日志，旧的快照也不要了
+            mPaths.clear();
+            mRedoPaths.clear();
+            deleteSnapshots();
+            mGeneration = 0;
+            writeEmptyJournal(0);
+            mValidLength = HEADER_SIZE;
+        }
+        mFile = new RandomAccessFile(mJournalFile, "rw");
+        mChannel = mFile.getChannel();
+        //丢掉写到一半的记录，后面接着写
+        mChannel.truncate(mValidLength);
+        mChannel.position(mValidLength);
+    }
+
+    private void write(int type, ByteBuffer payload) {
+        if (mFailed || mChannel == null)
+            return;
+        try {
+            int length = 1 + payload.remaining();
+            ByteBuffer record = ByteBuffer.allocate(4 + length + 4);
+            record.putInt(length);
+            record.put((byte) type);
+            record.put(payload.duplicate());
+            mCrc.reset();
+            mCrc.update(record.array(), 4, length);
+            record.putInt((int) mCrc.getValue());
+            record.flip();
+            while (record.hasRemaining()) {
+                mChannel.write(record);
+            }
+            apply(type, payload);
+            mRecordCount++;
+            if (++mUnsynced >= SYNC_BATCH) {
+                sync();
+            } else if (!mSyncPosted) {
+                mSyncPosted = true;
+                mWriteHandler.postDelayed(mSyncRunnable, SYNC_DELAY_MS);
+            }
+            if (mRecordCount >= COMPACT_RECORDS)
+                compactNow();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void sync() throws IOException {
+        if (mChannel != null && mUnsynced > 0)
+            mChannel.force(false);
+        mUnsynced = 0;
+    }
+
+    private void compactNow() throws IOException {
+        long next = mGeneration + 1;
+        MosaicSession.writeEntries(getSnapshotFile(next), mWidth, mHeight, mCurrentModel, mSelectMskModel,
+                mBlockSize, mTextureUri, mPaths, mRedoPaths);
+        mWriteHandler.removeCallbacks(mSyncRunnable);
+        mSyncPosted = false;
+        mFile.close();
+        //日志换成新的代数之前崩溃，启动时仍然使用旧的快照和日志
+        writeEmptyJournal(next);
+        getSnapshotFile(mGeneration).delete();
+        mGeneration = next;
+        mRecordCount = 0;
+        mUnsynced = 0;
+        mValidLength = HEADER_SIZE;
+        mFile = new RandomAccessFile(mJournalFile, "rw");
+        mChannel = mFile.getChannel();
+        mChannel.position(mValidLength);
+    }
+
+    private void writeEmptyJournal(long generation) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs())
+            throw new IOException("mkdirs failed " + mDir);
+        File temp = new File(mJournalFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(generation);
+            header.putInt(mWidth);
+            header.putInt(mHeight);
+            header.flip();
+            FileChannel channel = stream.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        MosaicSession.replace(temp, mJournalFile);
+    }
+
+    private void deleteSnapshots() {
+        File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith("snapshot-"))
+                file.delete();
+        }
+    }
+
+    private File getSnapshotFile(long generation) {
+        return new File(mDir, "snapshot-" + generation);
+    }
+
+    //出错之后不再写入，已经写入的部分仍然可以恢复
+    private void fail(IOException e) {
+        Log.w(TAG, "journal disabled", e);
+        mFailed = true;
+    }
+
+    //把一条记录应用到回放的状态上
+    private void apply(int type, ByteBuffer payload) {
+        if (type == RECORD_STROKE) {
+            mPaths.add(payload);
+        } else if (type == RECORD_UNDO) {
+            if (!mPaths.isEmpty())
+                mRedoPaths.add(mPaths.remove(mPaths.size() - 1));
+        } else if (type == RECORD_REDO) {
+            if (!mRedoPaths.isEmpty())
+                mPaths.add(mRedoPaths.remove(mRedoPaths.size() - 1));
+        } else if (type == RECORD_CLEAR_REDO) {
+            mRedoPaths.clear();
+        } else if (type == RECORD_RESET) {
+            mPaths.clear();
+            mRedoPaths.clear();
+        } else if (type == RECORD_MODE) {
+            ByteBuffer buffer = payload.duplicate();
+            mCurrentModel = buffer.getInt();
+            mSelectMskModel = buffer.getInt();
+            mBlockSize = buffer.getInt();
+            mTextureUri = MosaicSession.readUri(buffer);
+        }
+    }
+}
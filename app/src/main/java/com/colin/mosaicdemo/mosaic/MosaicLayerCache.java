@@ -0,0 +1,243 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * create by colin
+ * 2020/12/16
+ * <p>
+ * 马赛克图层缓存，按 原图 + 块大小 缓存不同强度的块图。
+ * <p>
+ * 设置原图后在后台把几个常用的块大小提前算好，用户切换强度时如果已经缓存就可以直接换 shader。
+ * 缓存按字节数限制大小，LRU 淘汰，被淘汰的块图还给 Glide 的 BitmapPool。
+ */
+public class MosaicLayerCache {
+
+    public static final int[] DEFAULT_BLOCK_SIZES = {8, 16, 32, 64};
+
+    private final BitmapPool mPool;
+    private final LruCache<Key, Bitmap> mCache;
+    //等待计算结果的回调，只在主线程访问
+    private final Map<Key, List<OnLayerReadyListener>> mPending = new HashMap<>();
+
+    //积分图只保留最近一张原图的
+    private Bitmap mIntegralSource;
+    private MosaicIntegralImage mIntegralImage;
+    //每次清空加一，清空前开始计算的积分图不再保存，需要持有 this 的锁
+    private int mIntegralGeneration;
+    //同一时间只计算一张积分图
+    private final Object mIntegralLock = new Object();
+
+    //正在被画笔使用的块图，被淘汰时不能立即还回 pool
+    private Bitmap mPinned;
+    private boolean mPinnedEvicted;
+
+    public interface OnLayerReadyListener {
+        void onLayerReady(Bitmap source, int blockSize, Bitmap layer);
+    }
+
+    /**
+     * @param pool     块图的来源和去处
+     * @param maxBytes 缓存的字节上限
+     */
+    public MosaicLayerCache(BitmapPool pool, int maxBytes) {
+        mPool = pool;
+        mCache = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    recycleLayer(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * 默认使用堆上限的 1/8
+     */
+    public static int getDefaultMaxBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    public Bitmap get(Bitmap source, int blockSize) {
+        return mCache.get(new Key(source, blockSize));
+    }
+
+    /**
+     * 在后台按顺序计算各个块大小的图层，已经缓存的会跳过。
+     */
+    public void prefetch(Bitmap source, int[] blockSizes) {
+        for (int blockSize : blockSizes) {
+            request(source, blockSize, null);
+        }
+    }
+
+    /**
+     * 获取一个图层，已缓存时同步回调，否则计算完成后在主线程回调。
+     * 同一个图层同时只会计算一次。
+     *
+     * @param listener 可以为空，只做预取
+     */
+    public void request(Bitmap source, int blockSize, OnLayerReadyListener listener) {
+        final Key key = new Key(source, blockSize);
+        Bitmap layer = mCache.get(key);
+        if (layer != null) {
+            if (listener != null)
+                listener.onLayerReady(source, blockSize, layer);
+            return;
+        }
+        List<OnLayerReadyListener> listeners = mPending.get(key);
+        if (listeners != null) {
+            if (listener != null)
+                listeners.add(listener);
+            return;
+        }
+        listeners = new ArrayList<>();
+        if (listener != null)
+            listeners.add(listener);
+        mPending.put(key, listeners);
+        MosaicEngine.getPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap layer = getIntegralImage(key.source).createBlockBitmap(key.blockSize);
+                mCache.put(key, layer);
+                MosaicEngine.getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(key);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deliver(Key key) {
+        List<OnLayerReadyListener> listeners = mPending.remove(key);
+        if (listeners == null || listeners.isEmpty())
+            return;
+        Bitmap layer = mCache.get(key);
+        if (layer == null) {
+            //还没来得及用就被淘汰了，重新计算
+            for (OnLayerReadyListener listener : listeners) {
+                request(key.source, key.blockSize, listener);
+            }
+            return;
+        }
+        for (OnLayerReadyListener listener : listeners) {
+            listener.onLayerReady(key.source, key.blockSize, layer);
+        }
+    }
+
+    /**
+     * 积分图在 this 的锁外面计算，主线程的 pin 和淘汰不用等它。
+     * 多个分带任务同时需要时由 mIntegralLock 保证只算一次
+     */
+    private MosaicIntegralImage getIntegralImage(Bitmap source) {
+        synchronized (mIntegralLock) {
+            int generation;
+            synchronized (this) {
+                if (mIntegralSource == source)
+                    return mIntegralImage;
+                //先放掉旧的积分图，计算新的时不用同时占两份内存
+                mIntegralSource = null;
+                mIntegralImage = null;
+                generation = mIntegralGeneration;
+            }
+            MosaicIntegralImage image = MosaicIntegralImage.create(source);
+            synchronized (this) {
+                //计算期间被清空了，不再保存
+                if (generation == mIntegralGeneration) {
+                    mIntegralSource = source;
+                    mIntegralImage = image;
+                }
+            }
+            return image;
+        }
+    }
+
+    /**
+     * 标记正在使用的块图，之前标记的块图如果已被淘汰则在这里还回 pool。
+     *
+     * @param layer 可以为空，表示不再使用任何块图
+     */
+    public synchronized void pin(Bitmap layer) {
+        if (layer == mPinned)
+            return;
+        if (mPinned != null && mPinnedEvicted) {
+            mPool.put(mPinned);
+        }
+        mPinned = layer;
+        mPinnedEvicted = false;
+    }
+
+    private synchronized void recycleLayer(Bitmap layer) {
+        if (layer == mPinned) {
+            mPinnedEvicted = true;
+        } else {
+            mPool.put(layer);
+        }
+    }
+
+    /**
+     * 清空缓存和积分图，正在使用的块图也会被释放。
+     */
+    public void clear() {
+        pin(null);
+        mCache.evictAll();
+        synchronized (this) {
+            mIntegralSource = null;
+            mIntegralImage = null;
+            mIntegralGeneration++;
+        }
+    }
+
+    /**
+     * 找到最接近的预取块大小
+     */
+    public static int getNearestLevel(int blockSize) {
+        int nearest = DEFAULT_BLOCK_SIZES[0];
+        for (int level : DEFAULT_BLOCK_SIZES) {
+            if (Math.abs(level - blockSize) < Math.abs(nearest - blockSize)) {
+                nearest = level;
+            }
+        }
+        return nearest;
+    }
+
+    //原图按对象身份区分，不比较内容
+    private static class Key {
+        final Bitmap source;
+        final int blockSize;
+
+        Key(Bitmap source, int blockSize) {
+            this.source = source;
+            this.blockSize = blockSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return source == key.source && blockSize == key.blockSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(source) * 31 + blockSize;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import com.colin.mosaicdemo.util.SizeUtils;
+
+/**
+ * create by colin
+ * 2021/1/2
+ * <p>
+ * 编辑时的内存预算。画板的各个图层都和工作图一样大，按每个像素常驻的字节数加起来，
+ * 在 memoryClass 的一部分里算出工作图最多能有多少像素。原图更大时缩小成工作图编辑，
+ * 笔画按原图坐标保存，导出时再按原图分辨率重放。
+ * <p>
+ * 路径图和结果图是按瓦片分配的，这里按全部涂满估计，保证最坏的情况也放得下。
+ */
+public class MosaicMemoryBudget {
+
+    //预算占 memoryClass 的比例，剩下的留给界面、Glide 和各种缓存
+    private static final float BUDGET_FRACTION = 0.5f;
+
+    //各个图层每个像素的字节数
+    public static final int SOURCE = 4; //原图，ARGB_8888
+    public static final int PATH = 1; //路径覆盖率，ALPHA_8
+    public static final int BASE = 1; //合并的底图，ALPHA_8
+    public static final int RESULT = 4 * 2; //结果图的前后两个缓冲
+    public static final int TEXTURE = 4; //纹理，和原图一样大
+    public static final int INTEGRAL = 4 * 3; //非懒加载时整张图的积分图，不透明图只有 RGB 三个通道
+    public static final int PERSON = 4; //人像图
+    public static final int GRAY = 4; //灰度图
+    public static final int MIP = 3; //原图和合成结果的 1/2、1/4、1/8 缩小图，各占 4 * (1/4 + 1/16 + 1/64) 字节
+
+    //马赛克画板和人像画板的常驻图层
+    public static final int[] MOSAIC_LAYERS = {SOURCE, PATH, BASE, RESULT, TEXTURE, MIP};
+    public static final int[] PERSON_LAYERS = {SOURCE, PATH, BASE, RESULT, PERSON, GRAY, MIP};
+
+    private final long mBudgetBytes;
+    private final int mBytesPerPixel;
+
+    /**
+     * @param layers 常驻图层每个像素的字节数
+     */
+    public MosaicMemoryBudget(Context context, int... layers) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mBudgetBytes = (long) (am.getMemoryClass() * 1024L * 1024L * BUDGET_FRACTION);
+        int bytesPerPixel = 0;
+        for (int layer : layers) {
+            bytesPerPixel += layer;
+        }
+        mBytesPerPixel = Math.max(1, bytesPerPixel);
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public int getBytesPerPixel() {
+        return mBytesPerPixel;
+    }
+
+    /**
+     * 工作图的像素数上限
+     */
+    public long getMaxPixels() {
+        return mBudgetBytes / mBytesPerPixel;
+    }
+
+    /**
+     * 原图解码成工作图的 inSampleSize
+     */
+    public int getSampleSize(int width, int height) {
+        return SizeUtils.computeSampleSize(width, height, getMaxPixels());
+    }
+
+    /**
+     * 工作图再多一个图层时是否还在预算内，比如非懒加载模式的积分图
+     *
+     * @param extraBytesPerPixel 额外图层每个像素的字节数
+     */
+    public boolean fits(int width, int height, int extraBytesPerPixel) {
+        return (long) width * height * (mBytesPerPixel + extraBytesPerPixel) <= mBudgetBytes;
+    }
+}
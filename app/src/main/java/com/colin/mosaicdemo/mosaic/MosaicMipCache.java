@@ -0,0 +1,237 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+/**
+ * create by colin
+ * 2021/1/3
+ * <p>
+ * 缩小显示用的缩小图缓存。原图和合成结果各有 1/2、1/4、1/8 三级，每一级由上一级缩小一半得到，
+ * 缩小一半时双线性过滤正好是 2x2 的平均。绘制时按 ViewCamera 的缩放选一级，
+ * 每帧过滤的图片和屏幕差不多大，不用每次都从整张原图和所有结果瓦片缩小。
+ * <p>
+ * 原图的各级在后台线程一次算好，之后不再改变。合成结果的各级开始时是原图各级的副本，
+ * 渲染线程在结果图变化后只更新变化的区域，按分带持有 {@link #getLock()} 写入，
+ * 主线程绘制时持有同一个锁，不会画到写了一半的分带。
+ */
+class MosaicMipCache {
+
+    //缩小的级数，第 i 级是原图的 1/2^i
+    static final int LEVEL_COUNT = 3;
+    //更新合成结果时每个分带的行数，原图坐标，是 2^LEVEL_COUNT 的倍数，各级的分带正好对齐
+    private static final int BAND_ROWS = 512;
+
+    private final BitmapPool mPool;
+    private final int mWidth, mHeight;
+    //缩小图对应的原图
+    private Bitmap mSourceBitmap;
+    //下标 0 是 1/2，没有准备好时为空
+    private final Bitmap[] mSource = new Bitmap[LEVEL_COUNT];
+    private final Bitmap[] mComposite = new Bitmap[LEVEL_COUNT];
+    private volatile boolean mReady;
+    private volatile boolean mReleased;
+    private final Object mLock = new Object();
+
+    //以下只在渲染线程中使用
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Canvas mCanvas = new Canvas();
+    private final Rect mBand = new Rect();
+    private final Rect mLevelRect = new Rect();
+    //准备好之前结果图的变化，准备好后一起更新
+    private final Rect mPending = new Rect();
+
+    //只在主线程中使用
+    private final RectF mDst = new RectF();
+
+    MosaicMipCache(int width, int height, BitmapPool pool) {
+        mWidth = width;
+        mHeight = height;
+        mPool = pool;
+    }
+
+    /**
+     * 按缩放选择绘制用的级别，缩小后在屏幕上仍然不小于原图的一半，0 表示使用原图
+     *
+     * @param viewScale 原图一个像素在屏幕上的边长
+     */
+    static int getLevel(float viewScale) {
+        int level = 0;
+        while (level < LEVEL_COUNT && viewScale * (1 << (level + 1)) <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * 在后台算出原图的各级，完成后在主线程回调。合成结果的各级从原图复制
+     */
+    void build(final Bitmap source, final Runnable onReady) {
+        mSourceBitmap = source;
+        MosaicEngine.getPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+                Canvas canvas = new Canvas();
+                Bitmap parent = source;
+                for (int i = 0; i < LEVEL_COUNT && !mReleased; i++) {
+                    Bitmap level = mPool.get(getLevelSize(mWidth, i + 1), getLevelSize(mHeight, i + 1),
+                            Bitmap.Config.ARGB_8888);
+                    canvas.setBitmap(level);
+                    canvas.scale(0.5f, 0.5f);
+                    canvas.drawBitmap(parent, 0, 0, paint);
+                    canvas.setBitmap(null);
+                    Bitmap composite = mPool.get(level.getWidth(), level.getHeight(), Bitmap.Config.ARGB_8888);
+                    canvas.setBitmap(composite);
+                    canvas.drawBitmap(level, 0, 0, null);
+                    canvas.setBitmap(null);
+                    mSource[i] = level;
+                    mComposite[i] = composite;
+                    parent = level;
+                }
+                MosaicEngine.getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mReleased) {
+                            recycleLevels();
+                            return;
+                        }
+                        mReady = true;
+                        onReady.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 主线程：已经准备好，并且是从 source 缩小来的
+     */
+    boolean isReady(Bitmap source) {
+        return mReady && mSourceBitmap == source;
+    }
+
+    Object getLock() {
+        return mLock;
+    }
+
+    /**
+     * 主线程：把原图的第 level 级画到原图坐标系的画布上
+     *
+     * @param level 1 到 {@link #LEVEL_COUNT}
+     * @param left  原图左上角在画布上的位置
+     */
+    void drawSource(Canvas canvas, int level, float left, float top, Paint paint) {
+        draw(canvas, mSource[level - 1], level, left, top, paint);
+    }
+
+    /**
+     * 主线程：把合成结果的第 level 级画到原图坐标系的画布上，需要持有 {@link #getLock()}
+     */
+    void drawComposite(Canvas canvas, int level, float left, float top, Paint paint) {
+        draw(canvas, mComposite[level - 1], level, left, top, paint);
+    }
+
+    private void draw(Canvas canvas, Bitmap bitmap, int level, float left, float top, Paint paint) {
+        //每一级按向上取整缩小，放大回去时右下角可能超出原图不到一个像素
+        int scale = 1 << level;
+        mDst.set(left, top, left + bitmap.getWidth() * scale, top + bitmap.getHeight() * scale);
+        canvas.drawBitmap(bitmap, null, mDst, paint);
+    }
+
+    /**
+     * 渲染线程：原图的第 level 级，准备好之前为空
+     */
+    Bitmap getSource(int level) {
+        return mReady ? mSource[level - 1] : null;
+    }
+
+    /**
+     * 渲染线程：结果图在 bounds 内有变化，重新缩小这块区域。准备好之前先记下来
+     *
+     * @param bounds 原图坐标
+     * @param result 已经合成好的结果图，叠加在原图上
+     */
+    void update(Rect bounds, Bitmap source, TiledSurface result) {
+        if (mReleased)
+            return;
+        mPending.union(bounds);
+        if (!mReady || mPending.isEmpty())
+            return;
+        if (!mPending.intersect(0, 0, mWidth, mHeight)) {
+            mPending.setEmpty();
+            return;
+        }
+        //分带从 BAND_ROWS 的整数倍开始，每一级分带的边界都落在整像素上
+        for (int top = mPending.top / BAND_ROWS * BAND_ROWS; top < mPending.bottom; top += BAND_ROWS) {
+            mBand.set(mPending.left, Math.max(top, mPending.top),
+                    mPending.right, Math.min(top + BAND_ROWS, mPending.bottom));
+            synchronized (mLock) {
+                updateBand(source, result);
+            }
+        }
+        mPending.setEmpty();
+    }
+
+    private void updateBand(Bitmap source, TiledSurface result) {
+        for (int i = 0; i < LEVEL_COUNT; i++) {
+            int scale = 1 << (i + 1);
+            //这一级的像素由上一级 2x2 个像素得到，向外取整
+            mLevelRect.set(mBand.left / scale, mBand.top / scale,
+                    (mBand.right + scale - 1) / scale, (mBand.bottom + scale - 1) / scale);
+            mCanvas.setBitmap(mComposite[i]);
+            mCanvas.save();
+            mCanvas.clipRect(mLevelRect);
+            //原图可能有透明的部分，先清掉旧的内容
+            mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            mCanvas.scale(0.5f, 0.5f);
+            if (i == 0) {
+                mCanvas.drawBitmap(source, 0, 0, mPaint);
+                result.drawTo(mCanvas, 0, 0, mPaint);
+            } else {
+                mCanvas.drawBitmap(mComposite[i - 1], 0, 0, mPaint);
+            }
+            mCanvas.restore();
+            mCanvas.setBitmap(null);
+        }
+    }
+
+    /**
+     * 图片还给 pool，之后不能再使用。还在后台计算时，算完后再还
+     */
+    void release() {
+        mReleased = true;
+        if (mReady) {
+            synchronized (mLock) {
+                recycleLevels();
+            }
+        }
+        mReady = false;
+        mSourceBitmap = null;
+    }
+
+    private void recycleLevels() {
+        for (int i = 0; i < LEVEL_COUNT; i++) {
+            if (mSource[i] != null) {
+                mPool.put(mSource[i]);
+                mSource[i] = null;
+            }
+            if (mComposite[i] != null) {
+                mPool.put(mComposite[i]);
+                mComposite[i] = null;
+            }
+        }
+    }
+
+    private static int getLevelSize(int size, int level) {
+        int scale = 1 << level;
+        return Math.max(1, (size + scale - 1) / scale);
+    }
+}
@@ -1,15 +1,20 @@
 package com.colin.mosaicdemo.mosaic;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.Shader;
 import android.net.Uri;
 import android.util.AttributeSet;
@@ -20,12 +25,17 @@ import android.view.View;
 import androidx.annotation.Nullable;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
 import com.colin.mosaicdemo.R;
 import com.colin.mosaicdemo.util.Logger;
 import com.colin.mosaicdemo.util.ValueMappingUtils;
 import com.colin.mosaicdemo.util.ViewCamera;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * create by colin
@@ -34,39 +44,186 @@ import java.util.ArrayList;
  * 马赛克画笔，支持像素块和纹理图片
  * <p>
  * 需求为替换式，即马赛克和纹理二选一。
+ * <p>
+ * 路径图的绘制和结果图的合成都在渲染线程完成，结果图有前后两个缓冲，
+ * 渲染线程画完后台缓冲后和前台缓冲交换，onDraw 只绘制前台缓冲。
+ * <p>
+ * 路径图和结果图都是 {@link TiledSurface}，只有涂抹过的瓦片占内存。结果图只保存路径覆盖的部分，
+ * 绘制时叠加在原图上。
+ * <p>
+ * 路径图只保存 8 位的覆盖率，马赛克或纹理在合成时才通过 shader 填进去，所以切换马赛克强度或纹理
+ * 不需要重画路径。
  */
 public class MosaicPainter extends View implements ViewCamera.ViewCameraListener {
 
     //视图相机
     private ViewCamera mViewCamera;
-    //原图
+    //原图，原图太大时是缩小后的工作图，笔画都在这个坐标系中
     protected Bitmap mSrcBitmap;
-    //结果的图片
-    private Bitmap mResultBitmap;
-    //用于画路径的透明图片
-    protected Bitmap mPathBitmap;
+    //解码前的原图尺寸，保存的笔画换算到这个尺寸
+    private int mSourceWidth, mSourceHeight;
+    //工作图解码出来之前显示的小预览图，放大到工作图的尺寸绘制，没有时为空
+    private Bitmap mPreviewBitmap;
+    private final RectF mPreviewRect = new RectF();
+    //结果图，渲染线程合成用的后台缓冲
+    private TiledSurface mResultSurface;
+    //已经合成好的前台缓冲，onDraw 绘制它，交换时需要持有 mFrontLock
+    private TiledSurface mFrontSurface;
+    private final Object mFrontLock = new Object();
+    //屏幕分辨率合成的前后两帧，和结果图一样交换时需要持有 mFrontLock
+    private ViewportFrame mFrontFrame = new ViewportFrame();
+    private ViewportFrame mBackFrame = new ViewportFrame();
+    //缩小显示时只合成可见区域的屏幕分辨率的帧，结果图暂停更新，需要持有 mFrontLock
+    private boolean mResultStale;
+    //路径的覆盖率图层，ALPHA_8，只在渲染线程中使用
+    protected TiledSurface mPathSurface;
 
     //普通画笔，叠加
     protected Paint mPaintSrc;
-    //用于画路径的画笔
+    //用于画路径覆盖率的画笔
     protected Paint mPaintPath;
+    //合成时把马赛克或纹理填进覆盖率的画笔，只在渲染线程中使用
+    private Paint mPaintComposite;
+    //懒加载模式的合成画笔，shader 由瓦片图层设置
+    private Paint mPaintTileComposite;
     //橡皮擦的画笔
     protected Paint mPaintClean;
+    //mPaintPath 和 mPaintClean 只在渲染线程中使用，主线程需要画路径时从这两个模板复制
+    private Paint mPaintPathTemplate;
+    private Paint mPaintCleanTemplate;
     //镜子画笔
     private Paint mPaintMirror;
 
-    //用于路径画布
-    protected Canvas mPathCanvas;
-    //最终效果画布，通过效果画布滑道resultBitmap上，再把resultBitmap画到view上。
-    protected Canvas mResultCanvas;
 
-    //路径集合
+    //路径集合，主线程修改时需要持有它的锁
     private ArrayList<MosaicPath> mPathList;
     private ArrayList<MosaicPath> mRedoPathList;
+    //保留在路径集合里可以撤销的笔画数，更早的会合并到底图，0 表示不合并
+    private int mFlattenStrokeCount = DEFAULT_FLATTEN_STROKE_COUNT;
+    //是否已经有笔画合并到底图
+    private boolean mHasFlattened;
+    //编辑日志，没有打开时为空
+    private MosaicJournal mJournal;
     //是否是预览，这时候马赛克还未算出来，不响应事件那些
     private boolean isPreView = true;
     private boolean isInit = false;
+
+    //渲染线程
+    private MosaicRenderThread mRenderThread;
+    //以下是主线程提交给渲染线程的状态，渲染线程在每帧开始时取走，需要持有 mStateLock
+    private final Object mStateLock = new Object();
     protected boolean isDrawAll = true;
+    //等待渲染线程按顺序处理的新增线段和撤销重做
+    private final ArrayList<RenderOp> mPendingOps = new ArrayList<>();
+    //路径被清空，撤销记录都没用了
+    private boolean mClearHistory;
+    //从会话文件恢复的底图，渲染线程在下一帧换上
+    private TiledSurface mRestoredBase;
+    //已经从路径集合移走、渲染线程还没合并到底图的笔画，保存会话时要单独写出
+    private final ArrayList<MosaicPath> mFlatteningPaths = new ArrayList<>();
+    //自上次合成以来有变化的区域，原图坐标
+    private final RectF mDirtyRect = new RectF();
+    //合成用的 shader，由渲染线程设置到 mPaintComposite 上
+    private Shader mMaskShader;
+    private boolean mShaderChanged;
+    //路径没有变化，只需要重新合成
+    private boolean mCompositeAll;
+    //这一帧完成后需要刷新的 view 区域
+    private final Rect mFrameInvalidateRect = new Rect();
+    private boolean mInvalidateAll;
+    //屏幕分辨率合成模式下当前需要的帧，原图坐标和缩放
+    private boolean mViewportActive;
+    private final RectF mViewportRect = new RectF();
+    private float mViewportScale;
+
+    //以下只在渲染线程中使用
+    //本帧需要重新合成的区域，原图坐标，子类合成时需要限制在这个范围内
+    protected final Rect mDirtyBounds = new Rect();
+    //上一帧自己的变化区域，交换后的后台缓冲还缺这部分
+    private final Rect mLastFrameBounds = new Rect();
+    private final Rect mFrameBounds = new Rect();
+    private final RectF mRenderDirty = new RectF();
+    private final Rect mRenderInvalidateRect = new Rect();
+    //屏幕分辨率合成期间结果图没有更新的区域，回到原图分辨率时补上
+    private final Rect mSkippedBounds = new Rect();
+    private final RectF mRenderViewportRect = new RectF();
+    private float mRenderViewportScale;
+    private final RectF mFrameComposite = new RectF();
+    private final Rect mFrameTileBounds = new Rect();
+    //合成屏幕分辨率的帧时缩小原图的画笔
+    private final Paint mPaintFrameSrc = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final RectF mFrameSrcRect = new RectF();
+    private final ArrayList<MosaicPath> mRenderPaths = new ArrayList<>();
+    private final ArrayList<RenderOp> mRenderOps = new ArrayList<>();
+    //每条笔画画之前的路径瓦片，撤销时还原
+    private MosaicHistory mHistory;
+    //超出撤销范围的笔画合并成的底图，ALPHA_8，没有合并过时为空
+    private volatile TiledSurface mBaseSurface;
+    //画完的笔画的覆盖率，重画所有路径时直接贴上去
+    private MosaicStrokeCache mStrokeCache;
+    //路径图上现有笔画的空间索引，随渲染线程处理的操作更新
+    private MosaicStrokeIndex mStrokeIndex;
+    //局部重画的范围和相交的笔画
+    private final RectF mReplayBounds = new RectF();
+    private final Rect mReplayRect = new Rect();
+    private final ArrayList<MosaicPath> mReplayPaths = new ArrayList<>();
+    private final RectF mCullBounds = new RectF();
+    private final ComponentCallbacks2 mTrimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            mStrokeCache.trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+
+        }
+
+        @Override
+        public void onLowMemory() {
+            mStrokeCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    };
+    private MosaicTileLayer mRenderTileLayer;
+    private int mRenderMskModel;
+    //正在按瓦片绘制的路径和它的范围
+    private MosaicPath mDrawingPath;
+    private final RectF mDrawBounds = new RectF();
+    private final TiledSurface.TileDrawer mPathDrawer = new TiledSurface.TileDrawer() {
+        @Override
+        public void draw(Canvas canvas) {
+            //画完的笔画优先贴缓存的覆盖率
+            if (mDrawingPath.isFinished() && mStrokeCache.draw(mDrawingPath, canvas))
+                return;
+            drawSinglePath(mDrawingPath, canvas);
+        }
+    };
+    //画新增线段时复用的路径
+    private final Path mSegmentPath = new Path();
+    private final TiledSurface.TileDrawer mSegmentTileDrawer = new TiledSurface.TileDrawer() {
+        @Override
+        public void draw(Canvas canvas) {
+            drawSegment(mDrawingPath, canvas);
+        }
+    };
+    private final RectF mCompositeBounds = new RectF();
+    private final CoverageDrawer mCoverageDrawer = new CoverageDrawer();
+    private final TiledSurface.TileDrawer mPreDrawer = new TiledSurface.TileDrawer() {
+        @Override
+        public void draw(Canvas canvas) {
+            preDrawAll(canvas, mPaintPath, true);
+        }
+    };
+
+    private final Rect mInvalidateRect = new Rect();
+    //笔画范围转换到 view 坐标的结果，复用避免分配
+    private final float[] mInvalidatePoint = new float[2];
+    //触摸点转换到图像坐标的结果，复用避免分配
+    private final float[] mTouchPoint = new float[2];
+    //最后一个被采用的触摸点，view 坐标
+    private float mLastTouchX, mLastTouchY;
+    //历史触摸点之间的最小距离，view 像素，小于它的点会被丢弃
+    private float mMinPointDistance = 2f;
     //是否在拖动缩放
     private boolean mIsTriggerMultiTouch = false;
     //图片距离底部的距离
@@ -79,9 +236,33 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
     //回调
     private MosaicInterFace mInterFace;
     private Uri selectedPicUri;
+    //纹理模式的纹理，导出时按原图分辨率重新着色
+    private Bitmap mTextureBitmap;
+
+    //不同块大小的马赛克图层缓存
+    private MosaicLayerCache mLayerCache;
+    //当前使用的块图
+    private Bitmap mBlockBitmap;
+    //当前想要的块大小，图层可能还在计算
+    private int mBlockSize;
+    //懒加载模式，只计算笔画经过的瓦片
+    private boolean mLazyMosaic;
+    //主线程最新设置的瓦片图层，渲染线程在下一帧换上，换下的由渲染线程释放
+    private MosaicTileLayer mTileLayer;
+    //原图比工作图大时，放大后从原图分块解码补充细节，没有时为空
+    private TiledImageSource mTiledSource;
+    private final RectF mVisibleRect = new RectF();
+    private final float[] mViewPoint = new float[2];
+    //缩小显示时改为合成屏幕分辨率的帧
+    private boolean mViewportRender;
+    private final RectF mViewportRequest = new RectF();
+    //原图和合成结果的缩小图，缩小显示时按缩放选一级绘制，渲染线程跟着前台缓冲更新
+    private MosaicMipCache mMipCache;
 
     //镜子相关参数
     private MosaicMirrorRectF mirrorRectF;
+    private final RectF mMirrorImageRect = new RectF();
+    private final Matrix mMirrorMatrix = new Matrix();
     //手指在view上的位置。
     private float mPointerX = -1, mPointerY = -1;
     private float mMirrorCenterCircleRadius; //圆的半径
@@ -95,6 +276,11 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
     private int mMinSizeRadius;
     private int mMaxSizeRadius;
     private static final float DEFAULT_SIZE_PERCENT = 30;
+    private static final int DEFAULT_FLATTEN_STROKE_COUNT = 0;
+    //屏幕分辨率的帧在可见区域四周多合成的比例
+    private static final float FRAME_MARGIN = 0.125f;
+    //缩放过程中帧的缩放和屏幕相差不超过这个比例时继续使用
+    private static final float FRAME_SCALE_TOLERANCE = 1.25f;
 
 
     public MosaicPainter(Context context) {
@@ -109,6 +295,11 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
 
     private void init() {
         mViewCamera = new ViewCamera(this);
+        mHistory = new MosaicHistory(MosaicHistory.getDefaultMaxBytes());
+        mStrokeCache = new MosaicStrokeCache(Glide.get(getContext()).getBitmapPool(),
+                MosaicStrokeCache.getDefaultMaxBytes());
+        mLayerCache = new MosaicLayerCache(Glide.get(getContext()).getBitmapPool(),
+                MosaicLayerCache.getDefaultMaxBytes());
         mPathList = new ArrayList<>();
         mRedoPathList = new ArrayList<>();
         mPaintSrc = new Paint(Paint.DITHER_FLAG);
@@ -124,6 +315,11 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
 
         mPaintClean = new Paint(mPaintPath);
         mPaintClean.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+        //马赛克块放大后需要保持清晰的方块，不开启过滤
+        mPaintComposite = new Paint(Paint.DITHER_FLAG);
+        mPaintTileComposite = new Paint(Paint.DITHER_FLAG);
+        mPaintPathTemplate = new Paint(mPaintPath);
+        mPaintCleanTemplate = new Paint(mPaintClean);
 
         mViewCamera.setViewCameraListener(this);
 
@@ -151,6 +347,12 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         if (mSrcBitmap == null) {
+            if (mPreviewBitmap != null) {
+                mViewCamera.onDrawInit(canvas, mBottomMargin);
+                canvas.drawBitmap(mPreviewBitmap, null, mPreviewRect, mPaintSrc);
+                mViewCamera.onDrawEnd(canvas);
+                return;
+            }
             logger.warning("no bitmap");
             return;
         }
@@ -159,57 +361,710 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
         float x = -mSrcBitmap.getWidth() / 2.0f;
         float y = -mSrcBitmap.getHeight() / 2.0f;
         if (!isInit || isPreView || isEmptyEraserModel()) {
-            canvas.drawBitmap(mSrcBitmap, x, y, mPaintSrc);
+            if (!drawSourceMip(canvas, x, y)) {
+                canvas.drawBitmap(mSrcBitmap, x, y, mPaintSrc);
+                drawTiledSource(canvas, x, y);
+            }
             mViewCamera.onDrawEnd(canvas);
         } else {
-            mResultCanvas.drawBitmap(mSrcBitmap, 0, 0, mPaintSrc);
-            mResultCanvas.save();
-            drawMask();
-            drawPathToCanvas();
-            mResultCanvas.restore();
-            canvas.drawBitmap(mResultBitmap, x, y, mPaintSrc);
-            mViewCamera.onDrawEnd(canvas);
-            //画复制镜, 复制镜不需要进行放大变换，使用view原始canvas即可。
-            if (mPointerX > -1 && mPointerY > -1 && !mIsTriggerMultiTouch) {
-                float[] imagePosition = mViewCamera.mapToImageFromView(mPointerX, mPointerY);
-                mirrorRectF.calculate(mPointerX, mPointerY, imagePosition[0], imagePosition[1]);
-                if (!mirrorRectF.circleOverEdge) { // 超出边界不显示指示镜
-                    canvas.save();
-                    canvas.drawBitmap(mResultBitmap, mirrorRectF.getImageRect(), mirrorRectF.getRectF(), null);
-                    mPaintMirror.setStrokeWidth(8f);
-                    canvas.drawRoundRect(mirrorRectF.getRectF(), mMirrorRoundRadius, mMirrorRoundRadius, mPaintMirror);
-                    mPaintMirror.setStrokeWidth(4f);
-                    canvas.drawCircle(mirrorRectF.getCircleX(), mirrorRectF.getCircleY(),
-                            mMirrorCenterCircleRadius, mPaintMirror);
-                    canvas.restore();
+            //合成在渲染线程中完成，这里只绘制最新的一帧
+            boolean viewport = updateViewport();
+            synchronized (mFrontLock) {
+                //结果图暂停更新期间，上面要盖上屏幕分辨率的帧
+                boolean drawFrame = viewport || mResultStale;
+                if (viewport && mFrontFrame.covers(mViewportRequest, mViewCamera.getViewScale(),
+                        getFrameTolerance())) {
+                    //帧里已经合成了原图，一个像素对应屏幕上的一个像素
+                    mFrontFrame.drawTo(canvas, x, y, mPaintSrc);
+                } else {
+                    //缩小图从结果图更新，结果图暂停更新期间缩小图也是旧的，不能用
+                    if (mResultStale || !drawCompositeMip(canvas, x, y)) {
+                        canvas.drawBitmap(mSrcBitmap, x, y, mPaintSrc);
+                        drawTiledSource(canvas, x, y);
+                        mFrontSurface.drawTo(canvas, x, y, mPaintSrc);
+                    }
+                    //新的帧还没合成好，先用上一帧盖住已经合成过的部分
+                    if (drawFrame)
+                        mFrontFrame.drawTo(canvas, x, y, mPaintSrc);
+                }
+                mViewCamera.onDrawEnd(canvas);
+                //画复制镜, 复制镜不需要进行放大变换，使用view原始canvas即可。
+                if (mPointerX > -1 && mPointerY > -1 && !mIsTriggerMultiTouch) {
+                    float[] imagePosition = mViewCamera.mapToImageFromView(mPointerX, mPointerY);
+                    mirrorRectF.calculate(mPointerX, mPointerY, imagePosition[0], imagePosition[1]);
+                    if (!mirrorRectF.circleOverEdge) { // 超出边界不显示指示镜
+                        canvas.save();
+                        canvas.clipRect(mirrorRectF.getRectF());
+                        mMirrorImageRect.set(mirrorRectF.getImageRect());
+                        mMirrorMatrix.setRectToRect(mMirrorImageRect, mirrorRectF.getRectF(), Matrix.ScaleToFit.FILL);
+                        canvas.concat(mMirrorMatrix);
+                        canvas.drawBitmap(mSrcBitmap, 0, 0, null);
+                        mFrontSurface.drawTo(canvas, 0, 0, null);
+                        //镜子里的图像和屏幕上一样大，帧的分辨率正好够用
+                        if (drawFrame)
+                            mFrontFrame.drawTo(canvas, 0, 0, null);
+                        canvas.restore();
+                        canvas.save();
+                        mPaintMirror.setStrokeWidth(8f);
+                        canvas.drawRoundRect(mirrorRectF.getRectF(), mMirrorRoundRadius, mMirrorRoundRadius, mPaintMirror);
+                        mPaintMirror.setStrokeWidth(4f);
+                        canvas.drawCircle(mirrorRectF.getCircleX(), mirrorRectF.getCircleY(),
+                                mMirrorCenterCircleRadius, mPaintMirror);
+                        canvas.restore();
+                    }
                 }
             }
         }
     }
 
-    protected void drawMask() {
-        if (isDrawAll) {
-            mPathCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            //对path进行合成
-            preDrawAll(mPathCanvas, mPaintPath, true);
-            for (MosaicPath mosaicPath : mPathList) {
-                drawSinglePath(mosaicPath, mPathCanvas);
+    /**
+     * 缩小显示时画原图的缩小图，只过滤一张和屏幕差不多大的图。缩小图还没准备好或者不需要时返回 false
+     */
+    private boolean drawSourceMip(Canvas canvas, float x, float y) {
+        int level = MosaicMipCache.getLevel(mViewCamera.getViewScale());
+        if (level == 0 || mMipCache == null || !mMipCache.isReady(mSrcBitmap))
+            return false;
+        mMipCache.drawSource(canvas, level, x, y, mPaintSrc);
+        return true;
+    }
+
+    /**
+     * 缩小显示时画合成结果的缩小图，代替原图加上所有结果瓦片。需要持有 mFrontLock，
+     * 结果图暂停更新期间不能调用
+     */
+    private boolean drawCompositeMip(Canvas canvas, float x, float y) {
+        int level = MosaicMipCache.getLevel(mViewCamera.getViewScale());
+        if (level == 0 || mMipCache == null || !mMipCache.isReady(mSrcBitmap))
+            return false;
+        synchronized (mMipCache.getLock()) {
+            mMipCache.drawComposite(canvas, level, x, y, mPaintSrc);
+        }
+        return true;
+    }
+
+    //屏幕可见的范围，原图坐标，可能超出原图
+    private void updateVisibleRect() {
+        mViewCamera.mapToImageFromView(0, 0, mViewPoint);
+        mVisibleRect.left = mViewPoint[0];
+        mVisibleRect.top = mViewPoint[1];
+        mViewCamera.mapToImageFromView(getWidth(), getHeight(), mViewPoint);
+        mVisibleRect.right = mViewPoint[0];
+        mVisibleRect.bottom = mViewPoint[1];
+    }
+
+    /**
+     * 缩小显示时使用屏幕分辨率的帧，前台的帧和已经请求的帧都盖不住可见区域时请求渲染线程合成新的一帧
+     *
+     * @return 这一帧是否使用屏幕分辨率的帧
+     */
+    private boolean updateViewport() {
+        float scale = mViewCamera.getViewScale();
+        //放大后屏幕像素比原图多，按原图分辨率合成更省
+        boolean active = mViewportRender && scale < 1;
+        boolean request = false;
+        if (active) {
+            updateVisibleRect();
+            mViewportRequest.set(mVisibleRect);
+            if (!mViewportRequest.intersect(0, 0, mSrcBitmap.getWidth(), mSrcBitmap.getHeight()))
+                mViewportRequest.setEmpty();
+        }
+        synchronized (mStateLock) {
+            if (active != mViewportActive) {
+                mViewportActive = active;
+                request = true;
             }
+            float tolerance = getFrameTolerance();
+            float ratio = mViewportScale > 0 ? scale / mViewportScale : Float.MAX_VALUE;
+            //整张图都在屏幕外时没有需要合成的
+            if (active && !mViewportRequest.isEmpty() && (!mViewportRect.contains(mViewportRequest)
+                    || ratio > tolerance || ratio * tolerance < 1)) {
+                //四周多合成一圈，小范围的平移不用重新合成
+                mViewportRect.set(mViewportRequest);
+                mViewportRect.inset(-mViewportRequest.width() * FRAME_MARGIN,
+                        -mViewportRequest.height() * FRAME_MARGIN);
+                if (!mViewportRect.intersect(0, 0, mSrcBitmap.getWidth(), mSrcBitmap.getHeight()))
+                    mViewportRect.setEmpty();
+                mViewportScale = scale;
+                request = true;
+            }
+        }
+        if (request)
+            requestRender();
+        return active;
+    }
+
+    //缩放手势和动画期间帧的缩放不用完全一样，结束后再按最终的缩放合成
+    private float getFrameTolerance() {
+        return mViewCamera.isScaling() || mViewCamera.isAnimating() ? FRAME_SCALE_TOLERANCE : 1f;
+    }
+
+    //工作图不够清晰时，在上面盖一层原图解码的瓦片，结果图仍然画在最上面
+    private void drawTiledSource(Canvas canvas, float x, float y) {
+        if (mTiledSource == null)
+            return;
+        updateVisibleRect();
+        float workScale = (float) mTiledSource.getWidth() / mSrcBitmap.getWidth();
+        mTiledSource.draw(canvas, x, y, workScale, mViewCamera.getViewScale(), mVisibleRect);
+    }
+
+    /**
+     * 渲染线程：把新的笔画画到路径图上，合成到后台缓冲，再和前台缓冲交换。
+     */
+    private void renderFrame() {
+        boolean drawAll;
+        boolean compositeAll;
+        boolean invalidateAll;
+        boolean clearHistory;
+        boolean viewport;
+        TiledSurface restoredBase;
+        synchronized (mStateLock) {
+            drawAll = isDrawAll;
             isDrawAll = false;
+            compositeAll = drawAll || mCompositeAll;
+            mCompositeAll = false;
+            if (mShaderChanged) {
+                mPaintComposite.setShader(mMaskShader);
+                mShaderChanged = false;
+            }
+            if (mRenderTileLayer != mTileLayer) {
+                if (mRenderTileLayer != null)
+                    mRenderTileLayer.release();
+                mRenderTileLayer = mTileLayer;
+            }
+            mRenderMskModel = selectMskModel;
+            clearHistory = mClearHistory;
+            mClearHistory = false;
+            restoredBase = mRestoredBase;
+            mRestoredBase = null;
+            if (drawAll) {
+                synchronized (mPathList) {
+                    mRenderPaths.addAll(mPathList);
+                }
+            }
+            mRenderOps.addAll(mPendingOps);
+            mPendingOps.clear();
+            mRenderDirty.set(mDirtyRect);
+            mDirtyRect.setEmpty();
+            invalidateAll = mInvalidateAll || compositeAll;
+            mInvalidateAll = false;
+            mRenderInvalidateRect.set(mFrameInvalidateRect);
+            mFrameInvalidateRect.setEmpty();
+            viewport = mViewportActive;
+            mRenderViewportRect.set(mViewportRect);
+            mRenderViewportScale = mViewportScale;
+        }
+        //底图的锁不能在 mStateLock 里面获取
+        if (clearHistory) {
+            mHistory.clear();
+            mStrokeCache.clear();
+            releaseBaseSurface();
+        }
+        if (restoredBase != null)
+            mBaseSurface = restoredBase;
+        if (!drawAll) {
+            int failed = applyOps();
+            if (failed >= 0) {
+                //撤销的笔画没有记录，只能重画所有路径
+                drawAll = compositeAll = invalidateAll = true;
+                mRenderOps.subList(0, failed + 1).clear();
+                synchronized (mStateLock) {
+                    synchronized (mPathList) {
+                        mRenderPaths.addAll(mPathList);
+                    }
+                    //之后的操作已经包含在当前的路径集合里了，只有合并笔画还需要处理
+                    mRenderOps.addAll(mPendingOps);
+                    mPendingOps.clear();
+                }
+            }
+        }
+        if (drawAll) {
+            //已经从路径集合里移走的笔画要先合并到底图，否则重画后就丢了
+            for (RenderOp op : mRenderOps) {
+                if (op.type == RenderOp.FLATTEN)
+                    flattenPath(op.path);
+            }
+            drawAllPaths();
+        }
+        mRenderOps.clear();
+        mRenderPaths.clear();
+        //只重新合成有变化的区域
+        if (compositeAll) {
+            mDirtyBounds.set(0, 0, mSrcBitmap.getWidth(), mSrcBitmap.getHeight());
         } else {
-            if (!mPathList.isEmpty()) {
-                MosaicPath lastPath = getLastPath();
-                drawSinglePath(lastPath, mPathCanvas);
+            mRenderDirty.roundOut(mDirtyBounds);
+            if (!mDirtyBounds.intersect(0, 0, mSrcBitmap.getWidth(), mSrcBitmap.getHeight()))
+                mDirtyBounds.setEmpty();
+        }
+        if (viewport) {
+            if (compositeViewport())
+                invalidateAll = true;
+        } else {
+            //从屏幕分辨率合成回来，结果图要补上这期间的变化
+            if (!mSkippedBounds.isEmpty()) {
+                mDirtyBounds.union(mSkippedBounds);
+                mSkippedBounds.setEmpty();
+                invalidateAll = true;
+            }
+            //后台缓冲是上上帧的结果，还要补上上一帧的变化
+            mFrameBounds.set(mDirtyBounds);
+            mDirtyBounds.union(mLastFrameBounds);
+            if (!mDirtyBounds.isEmpty()) {
+                compositeTiles(mDirtyBounds);
+                synchronized (mFrontLock) {
+                    TiledSurface front = mFrontSurface;
+                    mFrontSurface = mResultSurface;
+                    mResultSurface = front;
+                    mResultStale = false;
+                    //帧没有记录结果图模式下的变化，下次要整帧重新合成
+                    mFrontFrame.invalidate();
+                    mBackFrame.invalidate();
+                }
+            } else if (mFrontFrame.isValid() || mBackFrame.isValid()) {
+                synchronized (mFrontLock) {
+                    mFrontFrame.invalidate();
+                    mBackFrame.invalidate();
+                }
+            }
+            mLastFrameBounds.set(mFrameBounds);
+            //缩小图只更新前台缓冲这一帧变化的区域
+            if (mMipCache != null)
+                mMipCache.update(mFrameBounds, mSrcBitmap, mFrontSurface);
+        }
+        if (invalidateAll) {
+            postInvalidate();
+        } else if (!mRenderInvalidateRect.isEmpty()) {
+            postInvalidate(mRenderInvalidateRect.left, mRenderInvalidateRect.top,
+                    mRenderInvalidateRect.right, mRenderInvalidateRect.bottom);
+        }
+    }
+
+    private void drawAllPaths() {
+        mStrokeIndex.clear();
+        if (mBaseSurface != null) {
+            //比较早的笔画已经合并到底图里，从底图开始画
+            mPathSurface.copyFrom(mBaseSurface);
+        } else {
+            mPathSurface.clear();
+            //对path进行合成
+            if (getPreDrawBounds(mDrawBounds))
+                mPathSurface.draw(mDrawBounds, mPreDrawer);
+        }
+        for (MosaicPath mosaicPath : mRenderPaths) {
+            //正在画的路径主线程可能还在加点，画整条路径和提交线段要一起完成
+            synchronized (mosaicPath) {
+                //还没画完的笔画撤销记录不完整
+                if (mosaicPath.hasSegment())
+                    mHistory.remove(mosaicPath);
+                ensureStamp(mosaicPath);
+                mDrawingPath = mosaicPath;
+                getStrokeBounds(mosaicPath, mosaicPath.bounds, mDrawBounds);
+                mStrokeIndex.put(mosaicPath, mDrawBounds);
+                drawToPathSurface(mosaicPath, mDrawBounds, mPathDrawer);
+                mosaicPath.commitSegment();
+            }
+        }
+        mDrawingPath = null;
+    }
+
+    /**
+     * 按顺序处理新增线段和撤销重做，每个操作的开销只和笔画覆盖的面积有关
+     *
+     * @return 撤销的笔画没有记录时返回这个操作的位置，需要重画所有路径，否则返回 -1
+     */
+    private int applyOps() {
+        for (int i = 0; i < mRenderOps.size(); i++) {
+            RenderOp op = mRenderOps.get(i);
+            MosaicPath path = op.path;
+            if (op.type == RenderOp.FLATTEN) {
+                //路径图里已经有这条笔画了，只需要更新底图
+                flattenPath(path);
+                continue;
+            }
+            if (op.type == RenderOp.UNDO) {
+                mStrokeIndex.remove(path);
+                boolean restored;
+                synchronized (path) {
+                    restored = mHistory.restore(path, mPathSurface, mRenderDirty);
+                    path.commitSegment();
+                }
+                //没有记录时只重画这条笔画覆盖的区域
+                if (!restored && !replayRegion(path))
+                    return i;
+                continue;
+            }
+            synchronized (path) {
+                if (op.type == RenderOp.REDO) {
+                    //重做的笔画总是在最上面，直接再画一次
+                    mHistory.remove(path);
+                    ensureStamp(path);
+                    updateIndex(path);
+                    drawPathTiles(path, path.bounds, mPathDrawer);
+                } else if (op.type == RenderOp.FINISH) {
+                    ensureStamp(path);
+                } else {
+                    updateIndex(path);
+                    if (path.hasSegment()) {
+                        //只画上一帧之后新增的线段，每帧的开销和笔画总长度无关
+                        drawPathTiles(path, path.getSegmentBounds(), mSegmentTileDrawer);
+                    }
+                }
+                path.commitSegment();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 撤销的笔画没有记录时，把它覆盖的区域恢复成底图，再按顺序重画和这个区域相交的笔画
+     *
+     * @return 区域内有还没画完新线段的笔画时返回 false，需要重画所有路径
+     */
+    private boolean replayRegion(MosaicPath removed) {
+        getStrokeBounds(removed, removed.bounds, mReplayBounds);
+        if (!mReplayBounds.intersect(0, 0, mSrcBitmap.getWidth(), mSrcBitmap.getHeight()))
+            return true;
+        mReplayBounds.roundOut(mReplayRect);
+        mStrokeIndex.query(mReplayBounds, mReplayPaths);
+        if (mBaseSurface != null) {
+            mPathSurface.copyFrom(mBaseSurface, mReplayRect);
+        } else {
+            mPathSurface.clear(mReplayRect);
+            if (getPreDrawBounds(mDrawBounds) && mDrawBounds.intersect(mReplayBounds))
+                mPathSurface.draw(mDrawBounds, mPreDrawer);
+        }
+        boolean complete = true;
+        for (MosaicPath path : mReplayPaths) {
+            synchronized (path) {
+                //新线段之后还会单独画一次，这里画了会叠加两次边缘
+                if (path.hasSegment()) {
+                    complete = false;
+                    break;
+                }
+                ensureStamp(path);
+                mDrawingPath = path;
+                getStrokeBounds(path, path.bounds, mDrawBounds);
+                if (mDrawBounds.intersect(mReplayBounds))
+                    drawToPathSurface(path, mDrawBounds, mPathDrawer);
+            }
+        }
+        mDrawingPath = null;
+        mReplayPaths.clear();
+        mRenderDirty.union(mReplayBounds);
+        return complete;
+    }
+
+    //需要持有 path 的锁
+    private void updateIndex(MosaicPath path) {
+        getStrokeBounds(path, path.bounds, mDrawBounds);
+        mStrokeIndex.put(path, mDrawBounds);
+    }
+
+    /**
+     * 按瓦片把 mDrawingPath 画到路径图上，橡皮擦只画已经有覆盖率的瓦片
+     *
+     * @return 橡皮擦下面没有覆盖率，什么都没画时返回 false
+     */
+    private boolean drawToPathSurface(MosaicPath path, RectF bounds, TiledSurface.TileDrawer drawer) {
+        if (path.type != MosaicPath.TYPE_CLEAN) {
+            mPathSurface.draw(bounds, drawer);
+            return true;
+        }
+        if (isEraserCulled(path, bounds))
+            return false;
+        mPathSurface.draw(bounds, drawer, false);
+        return true;
+    }
+
+    //橡皮擦下面没有底图、预先画的内容和更早的笔画时，整条跳过
+    private boolean isEraserCulled(MosaicPath path, RectF bounds) {
+        if (path.type != MosaicPath.TYPE_CLEAN || mBaseSurface != null)
+            return false;
+        if (getPreDrawBounds(mCullBounds) && RectF.intersects(mCullBounds, bounds))
+            return false;
+        return !mStrokeIndex.hasCoverageBelow(path, bounds);
+    }
+
+    /**
+     * 把一条超出撤销范围的笔画画到底图上，之后不再保留它的撤销记录和覆盖率缓存
+     */
+    private void flattenPath(MosaicPath path) {
+        if (mBaseSurface == null) {
+            TiledSurface base = new TiledSurface(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(),
+                    Bitmap.Config.ALPHA_8, Glide.get(getContext()).getBitmapPool());
+            if (getPreDrawBounds(mDrawBounds))
+                base.draw(mDrawBounds, mPreDrawer);
+            mBaseSurface = base;
+        }
+        synchronized (path) {
+            //合并之后覆盖率缓存马上就会丢掉，不再为它栅格化，直接画路径
+            mDrawingPath = path;
+            getStrokeBounds(path, path.bounds, mDrawBounds);
+            //导出时主线程会读底图
+            synchronized (mBaseSurface) {
+                mBaseSurface.draw(mDrawBounds, mPathDrawer, path.type != MosaicPath.TYPE_CLEAN);
+                //保存会话时先锁底图再锁 mStateLock，两边看到的笔画不会重复也不会丢
+                synchronized (mStateLock) {
+                    mFlatteningPaths.remove(path);
+                }
+            }
+            mDrawingPath = null;
+        }
+        mStrokeIndex.remove(path);
+        mHistory.remove(path);
+        mStrokeCache.remove(path);
+    }
+
+    private void releaseBaseSurface() {
+        TiledSurface base = mBaseSurface;
+        if (base != null) {
+            synchronized (base) {
+                base.clear();
+            }
+            mBaseSurface = null;
+        }
+    }
+
+    //画完的笔画还没有缓存时栅格化一次
+    private void ensureStamp(MosaicPath path) {
+        if (path.isFinished() && !mStrokeCache.contains(path)) {
+            mStrokeCache.put(path, mPaintPath, mSrcBitmap.getWidth(), mSrcBitmap.getHeight());
+            //重画时贴印章，由点生成的路径先释放，印章被淘汰后再重新生成
+            path.releasePath();
+        }
+    }
+
+    //先记录将要被修改的瓦片，再画
+    private void drawPathTiles(MosaicPath path, RectF pointBounds, TiledSurface.TileDrawer drawer) {
+        mDrawingPath = path;
+        getStrokeBounds(path, pointBounds, mDrawBounds);
+        if (isEraserCulled(path, mDrawBounds)) {
+            //没有改动任何瓦片，撤销时也不需要还原
+            mHistory.mark(path);
+        } else {
+            mHistory.capture(path, mPathSurface, mDrawBounds);
+            mPathSurface.draw(mDrawBounds, drawer, path.type != MosaicPath.TYPE_CLEAN);
+            mRenderDirty.union(mDrawBounds);
+        }
+        mDrawingPath = null;
+    }
+
+    //路径点的范围加上画笔半径和抗锯齿的边缘
+    private static void getStrokeBounds(MosaicPath path, RectF pointBounds, RectF out) {
+        float half = path.size / 2f + 2;
+        out.set(pointBounds.left - half, pointBounds.top - half,
+                pointBounds.right + half, pointBounds.bottom + half);
+    }
+
+    //把 bounds 内的路径瓦片合成到后台缓冲，没有路径的瓦片结果也是空的，直接释放
+    private void compositeTiles(Rect bounds) {
+        int size = TiledSurface.TILE_SIZE;
+        int right = Math.min(mPathSurface.getCols() - 1, (bounds.right - 1) / size);
+        int bottom = Math.min(mPathSurface.getRows() - 1, (bounds.bottom - 1) / size);
+        for (int row = bounds.top / size; row <= bottom; row++) {
+            for (int col = bounds.left / size; col <= right; col++) {
+                Bitmap pathTile = mPathSurface.getTile(col, row);
+                if (pathTile == null) {
+                    mResultSurface.releaseTile(col, row);
+                    continue;
+                }
+                Canvas canvas = mResultSurface.lockTile(col, row);
+                canvas.clipRect(bounds);
+                mCompositeBounds.set(col * size, row * size, (col + 1) * size, (row + 1) * size);
+                if (!mCompositeBounds.intersect(bounds.left, bounds.top, bounds.right, bounds.bottom))
+                    mCompositeBounds.setEmpty();
+                canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                drawPathToCanvas(canvas, pathTile, col * size, row * size);
+                mResultSurface.unlockTile();
             }
         }
     }
 
+    /**
+     * 把可见区域合成到屏幕分辨率的后台帧，再和前台的帧交换。结果图暂停更新，
+     * 变化的区域记下来，回到原图分辨率时补上。
+     *
+     * @return 帧的位置或缩放变了，需要刷新整个 view
+     */
+    private boolean compositeViewport() {
+        //之后不再交换结果图，后台缓冲缺的上一帧的变化也算在里面
+        mSkippedBounds.union(mLastFrameBounds);
+        mLastFrameBounds.setEmpty();
+        mSkippedBounds.union(mDirtyBounds);
+        boolean changed = mBackFrame.setViewport(mRenderViewportRect, mRenderViewportScale,
+                Glide.get(getContext()).getBitmapPool());
+        mBackFrame.addPending(mDirtyBounds);
+        Canvas canvas = mBackFrame.lock(mFrameComposite);
+        if (canvas == null && !changed) {
+            //帧里没有要更新的内容，不用交换
+            mFrontFrame.addPending(mDirtyBounds);
+            return false;
+        }
+        if (canvas != null) {
+            //原图按帧的缩放采样，开销只和帧的像素数有关
+            drawFrameSource(canvas);
+            mFrameComposite.roundOut(mFrameTileBounds);
+            compositeFrameTiles(canvas, mFrameTileBounds);
+            mBackFrame.unlock();
+        }
+        synchronized (mFrontLock) {
+            ViewportFrame front = mFrontFrame;
+            mFrontFrame = mBackFrame;
+            mBackFrame = front;
+            mResultStale = !mSkippedBounds.isEmpty();
+        }
+        //换下来的帧是上一帧的结果，还缺这一帧的变化
+        mBackFrame.addPending(mDirtyBounds);
+        return changed;
+    }
+
+    //从缩放相当的一级缩小图采样原图，缩小图还没准备好时用原图
+    private void drawFrameSource(Canvas canvas) {
+        int level = MosaicMipCache.getLevel(mRenderViewportScale);
+        Bitmap source = level > 0 && mMipCache != null ? mMipCache.getSource(level) : null;
+        if (source == null) {
+            canvas.drawBitmap(mSrcBitmap, 0, 0, mPaintFrameSrc);
+            return;
+        }
+        int scale = 1 << level;
+        mFrameSrcRect.set(0, 0, source.getWidth() * scale, source.getHeight() * scale);
+        canvas.drawBitmap(source, null, mFrameSrcRect, mPaintFrameSrc);
+    }
+
+    //把 bounds 内的路径瓦片直接合成到帧上，canvas 已经变换到原图坐标并裁剪到 bounds
+    private void compositeFrameTiles(Canvas canvas, Rect bounds) {
+        int size = TiledSurface.TILE_SIZE;
+        int right = Math.min(mPathSurface.getCols() - 1, (bounds.right - 1) / size);
+        int bottom = Math.min(mPathSurface.getRows() - 1, (bounds.bottom - 1) / size);
+        for (int row = Math.max(0, bounds.top / size); row <= bottom; row++) {
+            for (int col = Math.max(0, bounds.left / size); col <= right; col++) {
+                Bitmap pathTile = mPathSurface.getTile(col, row);
+                if (pathTile == null)
+                    continue;
+                mCompositeBounds.set(col * size, row * size, (col + 1) * size, (row + 1) * size);
+                if (!mCompositeBounds.intersect(bounds.left, bounds.top, bounds.right, bounds.bottom))
+                    continue;
+                drawPathToCanvas(canvas, pathTile, col * size, row * size);
+            }
+        }
+    }
+
+    private void requestRender() {
+        if (!isInit)
+            return;
+        if (mRenderThread == null) {
+            mRenderThread = new MosaicRenderThread(new MosaicRenderThread.Renderer() {
+                @Override
+                public void onRenderFrame() {
+                    renderFrame();
+                }
+            });
+        }
+        mRenderThread.requestRender();
+    }
+
+    //路径没变，只是马赛克或纹理变了，重新合成整张图
+    private void requestCompositeAll() {
+        synchronized (mStateLock) {
+            mCompositeAll = true;
+            mInvalidateAll = true;
+        }
+        requestRender();
+    }
+
+    private void enqueueOp(int type, MosaicPath path) {
+        synchronized (mStateLock) {
+            mPendingOps.add(new RenderOp(type, path));
+            //撤销重做影响的范围在渲染线程才知道，刷新整个 view
+            if (type == RenderOp.UNDO || type == RenderOp.REDO)
+                mInvalidateAll = true;
+        }
+        requestRender();
+    }
+
+    //重新画所有路径并刷新整个 view
+    private void requestDrawAll() {
+        synchronized (mStateLock) {
+            isDrawAll = true;
+            mInvalidateAll = true;
+        }
+        requestRender();
+    }
+
+    private void quitRenderThread() {
+        if (mRenderThread != null) {
+            mRenderThread.quit();
+            mRenderThread = null;
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getContext().registerComponentCallbacks(mTrimCallbacks);
+        requestRender();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        quitRenderThread();
+        getContext().unregisterComponentCallbacks(mTrimCallbacks);
+        super.onDetachedFromWindow();
+    }
+
+    private void drawSegment(MosaicPath lastPath, Canvas pathCanvas) {
+        if (!lastPath.hasSegment())
+            return;
+        Paint paint = lastPath.type == MosaicPath.TYPE_CLEAN ? mPaintClean : mPaintPath;
+        paint.setStrokeWidth(lastPath.size);
+        lastPath.drawSegment(pathCanvas, paint, mSegmentPath);
+    }
+
+    /**
+     * 重画所有路径之前在路径图上画的内容，范围由 {@link #getPreDrawBounds(RectF)} 给出，
+     * 每个瓦片会调用一次。
+     */
     protected void preDrawAll(Canvas pathCanvas, Paint pathPaint, boolean needBlur) {
 
     }
 
-    protected void drawPathToCanvas() {
-        mResultCanvas.drawBitmap(mPathBitmap, 0, 0, mPaintSrc);
+    /**
+     * @return 需要 {@link #preDrawAll(Canvas, Paint, boolean)} 时返回 true，并在 out 中给出范围
+     */
+    protected boolean getPreDrawBounds(RectF out) {
+        return false;
+    }
+
+    /**
+     * 在渲染线程中把一个路径瓦片合成到结果图，canvas 已经裁剪到瓦片和 mDirtyBounds 的交集。
+     * 缩小显示合成屏幕分辨率的帧时，canvas 带有缩放，裁剪到帧里需要更新的区域
+     *
+     * @param pathTile ALPHA_8 的覆盖率
+     * @param left     瓦片在原图中的位置
+     */
+    protected void drawPathToCanvas(Canvas resultCanvas, Bitmap pathTile, int left, int top) {
+        if (mRenderTileLayer != null && mRenderMskModel == MosaicPath.TYPE_SMUDGE) {
+            //懒加载模式下每个马赛克瓦片有自己的 shader，只有被覆盖到的马赛克瓦片会被计算
+            mCoverageDrawer.set(pathTile, left, top);
+            mRenderTileLayer.draw(resultCanvas, mCompositeBounds, mPaintTileComposite, mCoverageDrawer);
+            mCoverageDrawer.set(null, 0, 0);
+        } else {
+            //ALPHA_8 的图使用画笔的 shader 着色
+            resultCanvas.drawBitmap(pathTile, left, top, mPaintComposite);
+        }
+    }
+
+    /**
+     * 复制一个路径画笔给主线程使用
+     */
+    protected Paint newPathPaint() {
+        return new Paint(mPaintPathTemplate);
+    }
+
+    /**
+     * 复制一个橡皮擦画笔给主线程使用
+     */
+    protected Paint newCleanPaint() {
+        return new Paint(mPaintCleanTemplate);
     }
 
     protected void setPathPaint(Paint pathPaint) {
@@ -237,10 +1092,10 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
             , Paint paintClean, Paint paintPath) {
         if (lastPath.type == MosaicPath.TYPE_CLEAN) {
             paintClean.setStrokeWidth(lastPath.size);
-            pathCanvas.drawPath(lastPath.path, paintClean);
+            pathCanvas.drawPath(lastPath.getPath(), paintClean);
         } else {
             paintPath.setStrokeWidth(lastPath.size);
-            pathCanvas.drawPath(lastPath.path, paintPath);
+            pathCanvas.drawPath(lastPath.getPath(), paintPath);
         }
     }
 
@@ -269,26 +1124,43 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
         if (isEmptyEraserModel())
             return true;
 
-        float[] posImage = mViewCamera.mapToImageFromView(event.getX(),
-                event.getY());
         //进行拖动，创建path添加。
         if (action == MotionEvent.ACTION_DOWN) {
             mIsTriggerMultiTouch = false;
             MosaicPath path = createPath();
-            path.path.moveTo(posImage[0], posImage[1]);
-            mPointerX = event.getX();
-            mPointerY = event.getY();
-            invalidate();
+            mViewCamera.mapToImageFromView(event.getX(), event.getY(), mTouchPoint);
+            path.moveTo(mTouchPoint[0], mTouchPoint[1], event.getEventTime());
+            mLastTouchX = mPointerX = event.getX();
+            mLastTouchY = mPointerY = event.getY();
+            invalidateSegment(path);
         } else if (action == MotionEvent.ACTION_MOVE) {
             if (mIsTriggerMultiTouch)
                 return true;
-            getLastPath().path.lineTo(posImage[0], posImage[1]);
+            MosaicPath lastPath = getLastPath();
+            //高刷新率的屏幕一个事件里会合并多个采样点，全部加进来，否则快速滑动时会变成折线
+            int historySize = event.getHistorySize();
+            for (int i = 0; i < historySize; i++) {
+                addTouchPoint(lastPath, event.getHistoricalX(i), event.getHistoricalY(i),
+                        event.getHistoricalEventTime(i), false);
+            }
+            addTouchPoint(lastPath, event.getX(), event.getY(), event.getEventTime(), true);
             mPointerX = event.getX();
             mPointerY = event.getY();
-            invalidate();
+            invalidateSegment(lastPath);
         } else if (action == MotionEvent.ACTION_UP) {
             mPointerX = -1;
             mPointerY = -1;
+            if (!mPathList.isEmpty()) {
+                MosaicPath lastPath = mPathList.get(mPathList.size() - 1);
+                //多指缩放之后也会收到抬起，这时最后一条笔画早就画完了
+                if (!lastPath.isFinished()) {
+                    lastPath.finish();
+                    enqueueOp(RenderOp.FINISH, lastPath);
+                    if (mJournal != null)
+                        mJournal.appendStroke(lastPath);
+                }
+                flattenOldPaths();
+            }
             invalidate();
             if (mInterFace != null)
                 mInterFace.onMosaicDrawComplete(mPathList.size());
@@ -297,8 +1169,103 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
         return true;
     }
 
+    /**
+     * @param force 为 false 时和上一个点距离太近的点会被丢弃
+     */
+    private void addTouchPoint(MosaicPath path, float viewX, float viewY, long time, boolean force) {
+        float dx = viewX - mLastTouchX;
+        float dy = viewY - mLastTouchY;
+        //重复的点总是丢弃，当前点只要有移动就采用
+        float distance = force ? 0 : mMinPointDistance;
+        if (dx * dx + dy * dy <= distance * distance)
+            return;
+        mViewCamera.mapToImageFromView(viewX, viewY, mTouchPoint);
+        path.lineTo(mTouchPoint[0], mTouchPoint[1], time);
+        mLastTouchX = viewX;
+        mLastTouchY = viewY;
+    }
+
+    /**
+     * 设置历史触摸点的抽稀距离
+     *
+     * @param minPointDistance view 像素，0 表示不抽稀
+     */
+    public void setMinPointDistance(float minPointDistance) {
+        mMinPointDistance = Math.max(0, minPointDistance);
+    }
+
+    /**
+     * 标记上一帧之后新增线段影响的区域，只刷新这部分
+     */
+    private void invalidateSegment(MosaicPath path) {
+        float left, top, right, bottom;
+        //加上画笔半径和抗锯齿的边缘
+        float half = path.size / 2f + 2;
+        synchronized (path) {
+            RectF segmentBounds = path.getSegmentBounds();
+            left = segmentBounds.left - half;
+            top = segmentBounds.top - half;
+            right = segmentBounds.right + half;
+            bottom = segmentBounds.bottom + half;
+        }
+
+        mViewCamera.mapToViewFromImage(left, top, mInvalidatePoint);
+        int invalidateLeft = (int) Math.floor(mInvalidatePoint[0]);
+        int invalidateTop = (int) Math.floor(mInvalidatePoint[1]);
+        mViewCamera.mapToViewFromImage(right, bottom, mInvalidatePoint);
+        mInvalidateRect.set(invalidateLeft, invalidateTop,
+                (int) Math.ceil(mInvalidatePoint[0]), (int) Math.ceil(mInvalidatePoint[1]));
+        //指示镜会在左右两边切换，把顶部指示镜所在的一整条都刷新
+        if (mirrorRectF != null) {
+            RectF mirror = mirrorRectF.getRectF();
+            mInvalidateRect.union(0, 0, getWidth(),
+                    (int) Math.ceil(mirror.bottom + mMirrorCenterCircleRadius + mPaintMirror.getStrokeWidth()));
+        }
+        //交给渲染线程，画完之后再刷新
+        synchronized (mStateLock) {
+            mDirtyRect.union(left, top, right, bottom);
+            int size = mPendingOps.size();
+            RenderOp last = size > 0 ? mPendingOps.get(size - 1) : null;
+            if (last == null || last.type != RenderOp.SEGMENT || last.path != path)
+                mPendingOps.add(new RenderOp(RenderOp.SEGMENT, path));
+            mFrameInvalidateRect.union(mInvalidateRect);
+        }
+        requestRender();
+    }
+
     protected boolean isEmptyEraserModel() {
-        return mPathList.isEmpty() && currentModel == MosaicPath.TYPE_CLEAN;
+        return mPathList.isEmpty() && !mHasFlattened && currentModel == MosaicPath.TYPE_CLEAN;
+    }
+
+    //超出撤销范围的笔画从路径集合中移走，交给渲染线程合并到底图
+    private void flattenOldPaths() {
+        int count = mPathList.size() - mFlattenStrokeCount;
+        if (mFlattenStrokeCount <= 0 || count <= 0)
+            return;
+        ArrayList<MosaicPath> flattened;
+        synchronized (mPathList) {
+            List<MosaicPath> oldPaths = mPathList.subList(0, count);
+            flattened = new ArrayList<>(oldPaths);
+            oldPaths.clear();
+        }
+        synchronized (mStateLock) {
+            mFlatteningPaths.addAll(flattened);
+        }
+        for (MosaicPath path : flattened) {
+            enqueueOp(RenderOp.FLATTEN, path);
+        }
+        mHasFlattened = true;
+    }
+
+    /**
+     * 设置可以撤销的笔画数。超出的笔画会合并到一张底图里，重画所有路径时从底图开始，
+     * 只需要再画最近的这些笔画，长时间编辑时重画的开销和路径占用的内存不会一直增长。
+     * 默认不合并，开启后更早的笔画就不能再撤销了。
+     *
+     * @param flattenStrokeCount 0 表示不合并，所有笔画都可以撤销
+     */
+    public void setFlattenStrokeCount(int flattenStrokeCount) {
+        mFlattenStrokeCount = Math.max(0, flattenStrokeCount);
     }
 
     private MosaicPath getLastPath() {
@@ -311,9 +1278,10 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
     private MosaicPath createPath() {
         MosaicPath path = new MosaicPath();
         path.type = currentModel;
-        path.path = new Path();
         path.size = mRealPaintSize;
-        mPathList.add(path);
+        synchronized (mPathList) {
+            mPathList.add(path);
+        }
         return path;
     }
 
@@ -323,8 +1291,55 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
      * @param src 原图
      */
     public void setPreView(Bitmap src) {
+        releasePreviewBitmap();
         mSrcBitmap = src;
         mViewCamera.setImageSize(mSrcBitmap.getWidth(), mSrcBitmap.getHeight());
+        //后台预先算好几个常用强度的马赛克图层，懒加载模式不需要
+        if (!mLazyMosaic)
+            mLayerCache.prefetch(src, MosaicLayerCache.DEFAULT_BLOCK_SIZES);
+    }
+
+    /**
+     * 原图还在解码时先显示一张小图，保持预览状态，之后设置原图时预览图会还给 BitmapPool
+     *
+     * @param preview 预览图，由画板负责回收
+     * @param width   原图的宽度，预览图放大到原图的尺寸显示
+     * @param height  原图的高度
+     */
+    public void setPreView(Bitmap preview, int width, int height) {
+        releasePreviewBitmap();
+        mPreviewBitmap = preview;
+        mPreviewRect.set(-width / 2.0f, -height / 2.0f, width / 2.0f, height / 2.0f);
+        mViewCamera.setImageSize(width, height);
+        invalidate();
+    }
+
+    private void releasePreviewBitmap() {
+        if (mPreviewBitmap != null) {
+            Glide.get(getContext()).getBitmapPool().put(mPreviewBitmap);
+            mPreviewBitmap = null;
+        }
+    }
+
+    /**
+     * 设置原图的分块解码，工作图是原图缩小得到时使用，放大查看时显示原图的细节。
+     * 之前设置的会被释放。
+     *
+     * @param source 为空时只显示工作图
+     */
+    public void setTiledSource(TiledImageSource source) {
+        if (mTiledSource != null)
+            mTiledSource.release();
+        mTiledSource = source;
+        if (source != null) {
+            source.setOnTileReadyListener(new TiledImageSource.OnTileReadyListener() {
+                @Override
+                public void onTileReady() {
+                    invalidate();
+                }
+            });
+        }
+        invalidate();
     }
 
     /**
@@ -344,12 +1359,51 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
      * @param msk 像素马赛克化后的图片
      */
     public void setBitmaps(Bitmap src, Bitmap msk, boolean needShader) {
+        setBitmaps(src, msk, needShader, src.getWidth(), src.getHeight());
+    }
+
+    /**
+     * src 是原图缩小后的工作图时使用，编辑在工作图上进行，会话和日志里的笔画按原图尺寸保存
+     *
+     * @param sourceWidth 原图的宽度
+     */
+    public void setBitmaps(Bitmap src, Bitmap msk, boolean needShader, int sourceWidth, int sourceHeight) {
+        //重新初始化时先停掉渲染线程，下次请求渲染时再启动
+        quitRenderThread();
+        releaseSurfaces();
+        releaseMipCache();
+        mHistory.clear();
+        releaseBaseSurface();
+        synchronized (mStateLock) {
+            releaseRestoredBase();
+        }
+        mHasFlattened = false;
+        releasePreviewBitmap();
         mSrcBitmap = src;
-        mPathBitmap = Glide.get(getContext()).getBitmapPool()
-                .get(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(), Bitmap.Config.ARGB_8888);
-        mResultBitmap = mPathBitmap.copy(Bitmap.Config.ARGB_8888, true);
-        mPathCanvas = new Canvas(mPathBitmap);
-        mResultCanvas = new Canvas(mResultBitmap);
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        BitmapPool pool = Glide.get(getContext()).getBitmapPool();
+        mPathSurface = new TiledSurface(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(),
+                Bitmap.Config.ALPHA_8, pool);
+        mResultSurface = new TiledSurface(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(), pool);
+        mFrontSurface = new TiledSurface(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(), pool);
+        mStrokeIndex = new MosaicStrokeIndex(mSrcBitmap.getWidth(), mSrcBitmap.getHeight());
+        mLastFrameBounds.setEmpty();
+        mSkippedBounds.setEmpty();
+        mMipCache = new MosaicMipCache(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(), pool);
+        mMipCache.build(mSrcBitmap, new Runnable() {
+            @Override
+            public void run() {
+                //准备好之前结果图的变化由渲染线程补上
+                requestRender();
+                invalidate();
+            }
+        });
+        synchronized (mStateLock) {
+            mViewportActive = false;
+            mViewportRect.setEmpty();
+            mViewportScale = 0;
+        }
         mViewCamera.setBlock(true);
         mViewCamera.setImageSize(mSrcBitmap.getWidth(), mSrcBitmap.getHeight());
         mFitScale = mViewCamera.getViewScale();
@@ -363,18 +1417,172 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
 
 
     /**
-     * 设置为马赛克模式
+     * 设置为马赛克模式。msk 是调用方自己生成的马赛克图，块大小未知，
+     * 之后需要调用 {@link #setMosaicBlockSize(int)} 才能导出
      */
     public void setMskBitmap(Bitmap msk, boolean needShader) {
+        mBlockSize = 0;
+        setMskBitmap(msk, needShader, 1);
+    }
+
+    /**
+     * @param blockScale msk 中一个像素对应原图中的边长，块图需要放大后使用
+     */
+    private void setMskBitmap(Bitmap msk, boolean needShader, int blockScale) {
         //整张图被算法像素马赛克化后的图片
         if (needShader)
-            mPaintPath.setShader(new BitmapShader(msk, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+            setMosaicShader(msk, blockScale);
         currentModel = MosaicPath.TYPE_SMUDGE;
         selectMskModel = MosaicPath.TYPE_SMUDGE;
-        isDrawAll = true;
+        journalMode();
+        requestCompositeAll();
+    }
+
+    private void setMosaicShader(Bitmap msk, int blockScale) {
+        BitmapShader shader = new BitmapShader(msk, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        if (blockScale != 1) {
+            //路径画笔不开启过滤，放大后每个像素就是一个清晰的方块
+            Matrix matrix = new Matrix();
+            matrix.setScale(blockScale, blockScale);
+            shader.setLocalMatrix(matrix);
+        }
+        setMaskShader(shader);
+    }
+
+    private void setMaskShader(Shader shader) {
+        synchronized (mStateLock) {
+            mMaskShader = shader;
+            mShaderChanged = true;
+        }
+    }
+
+
+    /**
+     * 修改马赛克块大小，并切换到马赛克模式。
+     * 图层已缓存时立即生效，否则保持预览状态直到图层计算完成。
+     *
+     * @param blockSize 马赛克块边长，单位为原图像素
+     */
+    public void setMosaicBlockSize(int blockSize) {
+        setMosaicBlockSize(blockSize, true);
+    }
+
+    /**
+     * @param switchModel 为 false 时不切换模式，也不写日志，只在当前是马赛克模式时换上新的图层，
+     *                    用于恢复 {@link #openJournal(File)} 读出的编辑
+     */
+    public void setMosaicBlockSize(int blockSize, final boolean switchModel) {
+        if (mSrcBitmap == null) {
+            logger.warning("setMosaicBlockSize before src bitmap ready");
+            return;
+        }
+        mBlockSize = Math.max(1, blockSize);
+        if (mLazyMosaic) {
+            applyTileLayer(mBlockSize, switchModel);
+            return;
+        }
+        Bitmap layer = mLayerCache.get(mSrcBitmap, mBlockSize);
+        if (layer != null) {
+            if (switchModel)
+                applyMosaicLayer(layer, mBlockSize);
+            else
+                updateMosaicLayer(layer, mBlockSize);
+            //之前切到还没算好的强度时进入了预览状态，这里已经有图层了
+            setPreView(false);
+            return;
+        }
+        if (switchModel || selectMskModel == MosaicPath.TYPE_SMUDGE)
+            setPreView(true);
+        final int requestModel = currentModel;
+        final int requestMskModel = selectMskModel;
+        mLayerCache.request(mSrcBitmap, mBlockSize, new MosaicLayerCache.OnLayerReadyListener() {
+            @Override
+            public void onLayerReady(Bitmap source, int blockSize, Bitmap layer) {
+                //期间又切换了强度或原图，丢弃这次的结果
+                if (source != mSrcBitmap || blockSize != mBlockSize)
+                    return;
+                setPreView(false);
+                //期间选了纹理，丢弃
+                if (selectMskModel != requestMskModel)
+                    return;
+                if (switchModel && currentModel == requestModel) {
+                    applyMosaicLayer(layer, blockSize);
+                } else {
+                    //期间选了橡皮擦或者正在恢复编辑，只换马赛克图层，不改模式
+                    updateMosaicLayer(layer, blockSize);
+                }
+            }
+        });
+    }
+
+    private void applyMosaicLayer(Bitmap layer, int blockSize) {
+        if (layer == mBlockBitmap && selectMskModel == MosaicPath.TYPE_SMUDGE)
+            return;
+        mBlockBitmap = layer;
+        mLayerCache.pin(layer);
+        setMskBitmap(layer, true, blockSize);
+    }
+
+    //马赛克模式下换上新的图层，不改变模式，不是马赛克模式时什么都不做
+    private void updateMosaicLayer(Bitmap layer, int blockSize) {
+        if (selectMskModel != MosaicPath.TYPE_SMUDGE || layer == mBlockBitmap)
+            return;
+        mBlockBitmap = layer;
+        mLayerCache.pin(layer);
+        setMosaicShader(layer, blockSize);
+        requestCompositeAll();
+    }
+
+    private void applyTileLayer(int blockSize, boolean switchModel) {
+        boolean sameLayer = mTileLayer != null && mTileLayer.getSource() == mSrcBitmap
+                && mTileLayer.getBlockSize() == blockSize;
+        if (sameLayer && (!switchModel || selectMskModel == MosaicPath.TYPE_SMUDGE))
+            return;
+        if (!sameLayer)
+            replaceTileLayer(new MosaicTileLayer(mSrcBitmap, blockSize, Glide.get(getContext()).getBitmapPool()));
+        if (!switchModel) {
+            requestCompositeAll();
+            return;
+        }
+        currentModel = MosaicPath.TYPE_SMUDGE;
+        selectMskModel = MosaicPath.TYPE_SMUDGE;
+        journalMode();
+        requestCompositeAll();
+    }
+
+    //渲染线程还没用过的图层可以直接释放，用过的等渲染线程换下时释放
+    private void replaceTileLayer(MosaicTileLayer tileLayer) {
+        synchronized (mStateLock) {
+            if (mTileLayer != null && mTileLayer != mRenderTileLayer)
+                mTileLayer.release();
+            mTileLayer = tileLayer;
+        }
+    }
+
+    /**
+     * 设置马赛克懒加载模式，需要在 {@link #setPreView(Bitmap)} 之前调用。
+     * <p>
+     * 开启后不再预先计算整张图的马赛克，而是在笔画第一次经过某块区域时才计算这块区域，
+     * 适合大图只打码少量区域的场景。
+     */
+    public void setLazyMosaic(boolean lazyMosaic) {
+        mLazyMosaic = lazyMosaic;
+        if (!lazyMosaic)
+            replaceTileLayer(null);
+    }
+
+    /**
+     * 设置屏幕分辨率合成模式。开启后缩小显示时渲染线程只合成可见区域，分辨率和屏幕一样，
+     * onDraw 也只绘制这一帧，合成和绘制的像素数和原图大小无关。放大到原图分辨率以上时仍然使用结果图。
+     */
+    public void setViewportRender(boolean viewportRender) {
+        mViewportRender = viewportRender;
         invalidate();
     }
 
+    public int getMosaicBlockSize() {
+        return mBlockSize;
+    }
 
     public void setBottomMargin(float bottomMargin) {
         this.mBottomMargin = bottomMargin;
@@ -393,9 +1601,23 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
         currentModel = MosaicPath.TYPE_PIC;
         selectMskModel = MosaicPath.TYPE_PIC;
         selectedPicUri = uri;
-        mPaintPath.setShader(new BitmapShader(texture, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
-        isDrawAll = true;
-        invalidate();
+        mTextureBitmap = texture;
+        setMaskShader(new BitmapShader(texture, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        journalMode();
+        requestCompositeAll();
+    }
+
+    /**
+     * 恢复 {@link #openJournal(File)} 读出的纹理，模式保持恢复出来的样子，不写日志。
+     * 期间已经换成别的素材时不做任何事
+     */
+    public void restoreTexture(Bitmap texture, Uri uri) {
+        if (selectMskModel != MosaicPath.TYPE_PIC || selectedPicUri != null)
+            return;
+        selectedPicUri = uri;
+        mTextureBitmap = texture;
+        setMaskShader(new BitmapShader(texture, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        requestCompositeAll();
     }
 
     /**
@@ -405,6 +1627,7 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
         if (currentModel == MosaicPath.TYPE_CLEAN)
             return;
         currentModel = MosaicPath.TYPE_CLEAN;
+        journalMode();
     }
 
     public void setMosaicInterFace(MosaicInterFace mInterFace) {
@@ -436,10 +1659,13 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
     public void undo() {
         if (mPathList.isEmpty())
             return;
-        MosaicPath remove = mPathList.remove(mPathList.size() - 1);
+        MosaicPath remove;
+        synchronized (mPathList) {
+            remove = mPathList.remove(mPathList.size() - 1);
+        }
         mRedoPathList.add(remove);
-        isDrawAll = true;
-        invalidate();
+        enqueueOp(RenderOp.UNDO, remove);
+        journal(MosaicJournal.RECORD_UNDO);
         if (mInterFace != null) {
             mInterFace.onUndoComplete(mPathList.size(), mRedoPathList.size());
         }
@@ -450,9 +1676,11 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
         if (mRedoPathList.isEmpty())
             return;
         MosaicPath remove = mRedoPathList.remove(mRedoPathList.size() - 1);
-        mPathList.add(remove);
-        isDrawAll = true;
-        invalidate();
+        synchronized (mPathList) {
+            mPathList.add(remove);
+        }
+        enqueueOp(RenderOp.REDO, remove);
+        journal(MosaicJournal.RECORD_REDO);
         if (mInterFace != null) {
             mInterFace.onRedoComplete(mPathList.size(), mRedoPathList.size());
         }
@@ -460,6 +1688,7 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
 
     public void clearRedo() {
         mRedoPathList.clear();
+        journal(MosaicJournal.RECORD_CLEAR_REDO);
     }
 
     public int getDefaultDisplaySizeProgress() {
@@ -486,31 +1715,57 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
     }
 
     public void reset(boolean invalidate) {
-        mPathList.clear();
+        synchronized (mPathList) {
+            mPathList.clear();
+        }
         mRedoPathList.clear();
-        isDrawAll = true;
+        mHasFlattened = false;
+        journal(MosaicJournal.RECORD_RESET);
+        synchronized (mStateLock) {
+            //还没合并的笔画也不要了，否则清空底图之后又会合并进去
+            mPendingOps.clear();
+            mFlatteningPaths.clear();
+            isDrawAll = true;
+            mClearHistory = true;
+        }
         if (invalidate) {
-            invalidate();
+            requestDrawAll();
         }
     }
 
     public void cleanBitmap() {
+        closeJournal();
+        setTiledSource(null);
+        releasePreviewBitmap();
+        //等正在渲染的一帧结束，之后才能回收它用到的图片
+        quitRenderThread();
+        isInit = false;
+        releaseMipCache();
         if (mSrcBitmap != null) {
             mSrcBitmap.recycle();
         }
-        if (mPathBitmap != null) {
-            mPathBitmap.recycle();
+        releaseSurfaces();
+        mBlockBitmap = null;
+        mLayerCache.clear();
+        replaceTileLayer(null);
+        if (mRenderTileLayer != null) {
+            mRenderTileLayer.release();
+            mRenderTileLayer = null;
         }
-        if (mResultBitmap != null) {
-            mResultBitmap.recycle();
+        synchronized (mPathList) {
+            mPathList.clear();
         }
-        if (mPathCanvas != null) {
-            mPathCanvas.setBitmap(null);
+        synchronized (mStateLock) {
+            mPendingOps.clear();
+            mFlatteningPaths.clear();
+            releaseRestoredBase();
         }
-        if (mResultCanvas != null) {
-            mResultCanvas.setBitmap(null);
-        }
-        mPathList.clear();
+        mHistory.clear();
+        mStrokeCache.clear();
+        releaseBaseSurface();
+        if (mStrokeIndex != null)
+            mStrokeIndex.clear();
+        mHasFlattened = false;
         mRedoPathList.clear();
     }
 
@@ -518,8 +1773,293 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
         return mPaintSize;
     }
 
+    //需要先停掉渲染线程
+    private void releaseMipCache() {
+        if (mMipCache != null) {
+            mMipCache.release();
+            mMipCache = null;
+        }
+    }
+
+    //瓦片还给 pool，需要先停掉渲染线程
+    private void releaseSurfaces() {
+        if (mPathSurface != null) {
+            mPathSurface.clear();
+        }
+        if (mResultSurface != null) {
+            mResultSurface.clear();
+        }
+        BitmapPool pool = Glide.get(getContext()).getBitmapPool();
+        mBackFrame.release(pool);
+        synchronized (mFrontLock) {
+            if (mFrontSurface != null) {
+                mFrontSurface.clear();
+            }
+            mFrontFrame.release(pool);
+            mResultStale = false;
+        }
+    }
+
+    /**
+     * 把最近合成好的一帧叠加到原图上，每次调用都会从 BitmapPool 中取一张新图。
+     * 缩小显示使用屏幕分辨率合成时结果图暂停更新，这期间的笔画要放大回原图分辨率后才有
+     */
     public Bitmap getResultBitmap() {
-        return mResultBitmap;
+        if (mSrcBitmap == null || mFrontSurface == null)
+            return null;
+        Bitmap result = Glide.get(getContext()).getBitmapPool()
+                .get(mSrcBitmap.getWidth(), mSrcBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(mSrcBitmap, 0, 0, mPaintSrc);
+        synchronized (mFrontLock) {
+            mFrontSurface.drawTo(canvas, 0, 0, mPaintSrc);
+        }
+        canvas.setBitmap(null);
+        return result;
+    }
+
+    protected MosaicStrokeCache getStrokeCache() {
+        return mStrokeCache;
+    }
+
+    /**
+     * 已经合并的笔画的覆盖率，读取时需要持有它的锁
+     *
+     * @return 没有合并过时为空
+     */
+    protected TiledSurface getBaseSurface() {
+        return mBaseSurface;
+    }
+
+    /**
+     * 按原图分辨率导出当前的编辑结果，编码成 PNG 写到 out，完成或失败后关闭 out。
+     * 调用时复制一份编辑状态，之后的编辑不影响这次导出，还没画完的笔画不导出。
+     * <p>
+     * 马赛克模式下导出器按块大小从原图重新计算马赛克，只设置过马赛克图、
+     * 没有调用过 {@link #setMosaicBlockSize(int)} 时不能导出。
+     *
+     * @param source 编辑所用图片的原图，尺寸可以比编辑时大，笔画按比例放大
+     */
+    public void export(MosaicExporter.Source source, OutputStream out, MosaicExporter.ExportListener listener) {
+        export(source, out, 0, 0, listener);
+    }
+
+    /**
+     * 和 {@link #export(MosaicExporter.Source, OutputStream, MosaicExporter.ExportListener)} 一样，
+     * 同时在导出的过程中生成预览图和缩略图，在完成回调中返回。
+     *
+     * @param previewSize   预览图长边的上限，0 表示不需要
+     * @param thumbnailSize 缩略图长边的上限，0 表示不需要
+     */
+    public void export(MosaicExporter.Source source, OutputStream out, int previewSize, int thumbnailSize,
+                       MosaicExporter.ExportListener listener) {
+        if (!isInit) {
+            listener.onExportFailed(new IllegalStateException("painter not initialized"));
+            return;
+        }
+        if (selectMskModel == MosaicPath.TYPE_SMUDGE && mBlockSize <= 0) {
+            //不能退回到 1 像素的块，那样导出的就是原图
+            listener.onExportFailed(new IllegalStateException("mosaic block size unknown"));
+            return;
+        }
+        int width = mSrcBitmap.getWidth();
+        int height = mSrcBitmap.getHeight();
+        BitmapPool pool = Glide.get(getContext()).getBitmapPool();
+        ArrayList<MosaicPath> paths = new ArrayList<>();
+        TiledSurface baseCopy = null;
+        TiledSurface base = mBaseSurface;
+        if (base != null) {
+            //渲染线程之后还会往底图里合并，导出用一份副本
+            synchronized (base) {
+                collectExportPaths(paths);
+                baseCopy = new TiledSurface(width, height, Bitmap.Config.ALPHA_8, pool);
+                baseCopy.copyFrom(base);
+            }
+        } else {
+            collectExportPaths(paths);
+        }
+        RectF preDrawBounds = new RectF();
+        TiledSurface.TileDrawer preDrawer = null;
+        if (baseCopy == null && getPreDrawBounds(preDrawBounds)) {
+            final Paint prePaint = newPathPaint();
+            preDrawer = new TiledSurface.TileDrawer() {
+                @Override
+                public void draw(Canvas canvas) {
+                    preDrawAll(canvas, prePaint, false);
+                }
+            };
+        } else {
+            preDrawBounds = null;
+        }
+        new MosaicExporter(pool, width, height, paths, baseCopy, preDrawer, preDrawBounds, selectMskModel,
+                mBlockSize, mTextureBitmap, newPathPaint(), newCleanPaint(), previewSize, thumbnailSize)
+                .start(source, out, listener);
+    }
+
+    /**
+     * 把当前的编辑状态写到文件里，进程被杀后可以用 {@link #restoreSession(File)} 恢复。
+     * 格式和 {@link #openJournal(File)} 的快照一样，另外带上已经合并的底图。
+     * 马赛克图层和纹理图片本身不保存，只保存块大小和纹理的 Uri。
+     * 人像轮廓之类的形状不是由点组成的，不保存。
+     */
+    public void saveSession(File file) throws IOException {
+        if (!isInit)
+            return;
+        ArrayList<MosaicPath> paths = new ArrayList<>();
+        TiledSurface base = mBaseSurface;
+        if (base != null) {
+            //写底图期间渲染线程不能继续合并
+            synchronized (base) {
+                collectExportPaths(paths);
+                writeSession(file, paths, base);
+            }
+        } else {
+            collectExportPaths(paths);
+            writeSession(file, paths, null);
+        }
+    }
+
+    //还没合并到底图的笔画比路径集合里的都早。画完的笔画不会再变，导出线程可以直接使用，
+    //画到一半的笔画不导出也不保存
+    private void collectExportPaths(ArrayList<MosaicPath> out) {
+        synchronized (mStateLock) {
+            out.addAll(mFlatteningPaths);
+        }
+        synchronized (mPathList) {
+            for (int i = 0; i < mPathList.size(); i++) {
+                MosaicPath path = mPathList.get(i);
+                if (path.isFinished() || path.hasShape())
+                    out.add(path);
+            }
+        }
+    }
+
+    private void writeSession(File file, List<MosaicPath> paths, TiledSurface base) throws IOException {
+        int shapes = countShapes(paths) + countShapes(mRedoPathList);
+        if (shapes > 0)
+            logger.warning("session skips " + shapes + " shape paths");
+        MosaicSession.write(file, mSourceWidth, mSourceHeight, mSrcBitmap.getWidth(), mSrcBitmap.getHeight(),
+                currentModel, selectMskModel, mBlockSize, selectedPicUri, paths, mRedoPathList, base);
+    }
+
+    private static int countShapes(List<MosaicPath> paths) {
+        int count = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            if (paths.get(i).hasShape())
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * 恢复 {@link #saveSession(File)} 保存的编辑状态，需要在 {@link #setBitmaps(Bitmap, Bitmap, boolean)} 之后调用。
+     * 笔画的点在第一次绘制时才解码，恢复本身只需要读文件头。
+     * <p>
+     * 马赛克和纹理需要调用方按返回的块大小和纹理 Uri 用 {@link #setMosaicBlockSize(int, boolean)}
+     * 和 {@link #restoreTexture(Bitmap, Uri)} 重新设置，恢复出来的模式保持不变。
+     *
+     * @return 原图尺寸和保存时不一致时不恢复，返回空
+     */
+    public MosaicSession restoreSession(File file) throws IOException {
+        if (!isInit)
+            return null;
+        MosaicSession session = MosaicSession.read(file, mSrcBitmap.getWidth(), mSrcBitmap.getHeight());
+        if (session.getWidth() != mSourceWidth || session.getHeight() != mSourceHeight) {
+            logger.warning("session size mismatch");
+            return null;
+        }
+        applySession(session, session.createBaseSurface(Glide.get(getContext()).getBitmapPool()));
+        return session;
+    }
+
+    /**
+     * 打开 dir 中的编辑日志并恢复上次的状态，之后每画完一笔、撤销重做和切换模式都会追加到日志里，
+     * 进程随时被杀也最多丢失最近一秒左右的操作。需要在 {@link #setBitmaps(Bitmap, Bitmap, boolean)} 之后调用。
+     * <p>
+     * 日志里只有笔画，不保存底图，恢复后超出撤销范围的笔画会重新合并一次。
+     * 马赛克和纹理需要调用方按返回的块大小和纹理 Uri 重新设置。
+     *
+     * @return 没有可恢复的内容时为空
+     */
+    public MosaicSession openJournal(File dir) {
+        if (!isInit)
+            return null;
+        closeJournal();
+        MosaicJournal journal = new MosaicJournal(dir, mSourceWidth, mSourceHeight,
+                mSrcBitmap.getWidth(), mSrcBitmap.getHeight());
+        MosaicSession session = null;
+        try {
+            session = journal.load();
+        } catch (IOException e) {
+            logger.warning("journal broken, start over: " + e);
+        }
+        if (session != null) {
+            applySession(session, null);
+            flattenOldPaths();
+        }
+        journal.start();
+        mJournal = journal;
+        return session;
+    }
+
+    /**
+     * 在后台把日志压缩成快照，适合在切到后台时调用
+     */
+    public void compactJournal() {
+        if (mJournal != null)
+            mJournal.compact();
+    }
+
+    /**
+     * 写完已经提交的记录后关闭日志，之后的操作不再记录
+     */
+    public void closeJournal() {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+    private void journal(int type) {
+        if (mJournal != null)
+            mJournal.append(type);
+    }
+
+    private void journalMode() {
+        if (mJournal != null)
+            mJournal.appendMode(currentModel, selectMskModel, mBlockSize, selectedPicUri);
+    }
+
+    private void applySession(MosaicSession session, TiledSurface base) {
+        synchronized (mPathList) {
+            mPathList.clear();
+            mPathList.addAll(session.getPaths());
+        }
+        mRedoPathList.clear();
+        mRedoPathList.addAll(session.getRedoPaths());
+        mHasFlattened = base != null;
+        currentModel = session.getCurrentModel();
+        selectMskModel = session.getSelectMskModel();
+        //纹理图片需要重新设置，不能被当成已经选中
+        selectedPicUri = null;
+        synchronized (mStateLock) {
+            mPendingOps.clear();
+            mFlatteningPaths.clear();
+            releaseRestoredBase();
+            mRestoredBase = base;
+            isDrawAll = true;
+            mClearHistory = true;
+            mInvalidateAll = true;
+        }
+        requestRender();
+    }
+
+    //需要持有 mStateLock
+    private void releaseRestoredBase() {
+        if (mRestoredBase != null) {
+            mRestoredBase.clear();
+            mRestoredBase = null;
+        }
     }
 
     public ArrayList<MosaicPath> getPathList() {
@@ -527,6 +2067,41 @@ public class MosaicPainter extends View implements ViewCamera.ViewCameraListener
     }
 
 
+    //交给渲染线程的操作
+    private static class RenderOp {
+        static final int SEGMENT = 0;
+        static final int UNDO = 1;
+        static final int REDO = 2;
+        //笔画画完，生成覆盖率缓存
+        static final int FINISH = 3;
+        //笔画超出撤销范围，合并到底图
+        static final int FLATTEN = 4;
+        final int type;
+        final MosaicPath path;
+
+        RenderOp(int type, MosaicPath path) {
+            this.type = type;
+            this.path = path;
+        }
+    }
+
+    //懒加载模式下用每个马赛克瓦片的 shader 给覆盖率着色
+    private static class CoverageDrawer implements MosaicTileLayer.TileDrawer {
+        private Bitmap coverage;
+        private int left, top;
+
+        void set(Bitmap coverage, int left, int top) {
+            this.coverage = coverage;
+            this.left = left;
+            this.top = top;
+        }
+
+        @Override
+        public void draw(Canvas canvas, Paint paint) {
+            canvas.drawBitmap(coverage, left, top, paint);
+        }
+    }
+
     public interface MosaicInterFace {
 
         void onTouchDown();
@@ -1,16 +1,322 @@
 package com.colin.mosaicdemo.mosaic;
 
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * create by colin
  * 2020/9/15
+ * <p>
+ * 主线程添加点，渲染线程绘制新增线段，两边都需要持有这个对象的锁。
+ * <p>
+ * 笔画保存为图像坐标的点数组，可以直接读取、保存和在任意线程处理。
+ * 绘制用的 {@link Path} 在第一次用到时才由点生成。
  */
 public class MosaicPath {
     public static int TYPE_PIC = 1;  //图片纹理路径。
     public static int TYPE_SMUDGE = 2; //像素块路径。
     public static int TYPE_CLEAN = 3; //橡皮擦
-    public Path path; //路径
     public int type; //类型
     public float size;//画笔大小
+    public final RectF bounds = new RectF(); //路径点的范围，不包含画笔宽度
+    public float lastX, lastY; //最后一个点
+
+    private static final String TAG = "MosaicPath";
+    private static final int INITIAL_CAPACITY = 16;
+
+    //x、y 交替存放
+    private float[] points = new float[INITIAL_CAPACITY * 2];
+    private int pointCount;
+    //每个点相对第一个点的时间，毫秒，起点没有时间时为空
+    private int[] times;
+    private long startTime;
+    //由点生成的路径，用到时才创建，之后只追加新增的点
+    private Path path;
+    private int pathPointCount;
+    //不是由点组成的形状，比如人像轮廓
+    private Path shape;
+    //从会话文件读出、还没有解码的点，第一次用到时才解码
+    private ByteBuffer encoded;
+    private boolean encodedTimes;
+    //文件中的点换算到工作图坐标的比例
+    private float encodedScaleX = 1f, encodedScaleY = 1f;
+
+    //上次绘制之后新增的线段，从这个点开始
+    private int segmentStart;
+    private final RectF segmentBounds = new RectF();
+    //起点的圆头是否已经画过
+    private boolean startDrawn;
+    //画完之后不会再添加点
+    private boolean finished;
+
+    /**
+     * 一条笔画只有一个起点，再次调用会清空之前的点
+     */
+    public synchronized void moveTo(float x, float y) {
+        encoded = null;
+        pointCount = 0;
+        times = null;
+        path = null;
+        addPoint(x, y);
+        bounds.set(x, y, x, y);
+        startDrawn = false;
+        commitSegment();
+    }
+
+    /**
+     * @param time 触摸事件的时间，毫秒
+     */
+    public synchronized void moveTo(float x, float y, long time) {
+        moveTo(x, y);
+        startTime = time;
+        times = new int[points.length / 2];
+    }
+
+    public synchronized void lineTo(float x, float y) {
+        addPoint(x, y);
+        if (pointCount == 1) {
+            bounds.set(x, y, x, y);
+        } else {
+            bounds.union(x, y);
+        }
+        segmentBounds.union(x, y);
+    }
+
+    public synchronized void lineTo(float x, float y, long time) {
+        lineTo(x, y);
+        if (times != null)
+            times[pointCount - 1] = (int) (time - startTime);
+    }
+
+    private void addPoint(float x, float y) {
+        ensureDecoded();
+        if (pointCount * 2 == points.length) {
+            points = Arrays.copyOf(points, points.length * 2);
+            if (times != null)
+                times = Arrays.copyOf(times, points.length / 2);
+        }
+        points[pointCount * 2] = x;
+        points[pointCount * 2 + 1] = y;
+        pointCount++;
+        lastX = x;
+        lastY = y;
+    }
+
+    public synchronized int getPointCount() {
+        return pointCount;
+    }
+
+    public synchronized float getX(int index) {
+        ensureDecoded();
+        return points[index * 2];
+    }
+
+    public synchronized float getY(int index) {
+        ensureDecoded();
+        return points[index * 2 + 1];
+    }
+
+    public synchronized boolean hasTimes() {
+        return encoded != null ? encodedTimes : times != null;
+    }
+
+    /**
+     * @return 没有时间时返回 -1
+     */
+    public synchronized long getTime(int index) {
+        ensureDecoded();
+        return times == null ? -1 : startTime + times[index];
+    }
+
+    /**
+     * 用一个现成的形状作为笔画，不再使用点
+     */
+    public synchronized void setShape(Path shape) {
+        this.shape = shape;
+        encoded = null;
+        pointCount = 0;
+        times = null;
+        path = null;
+        shape.computeBounds(bounds, false);
+    }
+
+    public synchronized boolean hasShape() {
+        return shape != null;
+    }
+
+    /**
+     * 绘制用的路径，第一次调用时由点生成。返回的是内部对象，还在加点时需要持有锁使用
+     */
+    public synchronized Path getPath() {
+        if (shape != null)
+            return shape;
+        ensureDecoded();
+        if (path == null) {
+            path = new Path();
+            pathPointCount = 0;
+        }
+        for (int i = pathPointCount; i < pointCount; i++) {
+            if (i == 0) {
+                path.moveTo(points[0], points[1]);
+            } else {
+                path.lineTo(points[i * 2], points[i * 2 + 1]);
+            }
+        }
+        pathPointCount = pointCount;
+        return path;
+    }
+
+    /**
+     * 把笔画写到 out 里，不会在笔画上留下生成的路径，适合导出这种只画一次的场合
+     */
+    public synchronized void copyPath(Path out) {
+        if (shape != null) {
+            out.set(shape);
+            return;
+        }
+        ensureDecoded();
+        out.rewind();
+        for (int i = 0; i < pointCount; i++) {
+            if (i == 0) {
+                out.moveTo(points[0], points[1]);
+            } else {
+                out.lineTo(points[i * 2], points[i * 2 + 1]);
+            }
+        }
+    }
+
+    /**
+     * 不再需要生成的路径时释放，下次用到时重新生成
+     */
+    public synchronized void releasePath() {
+        path = null;
+    }
+
+    /**
+     * 从会话文件恢复的笔画，点数据在第一次用到时才解码。恢复的笔画都是画完的。
+     *
+     * @param startTime 没有时间时为 -1
+     * @param scaleX    文件中的原图坐标换算到工作图坐标的比例
+     */
+    synchronized void setEncoded(ByteBuffer data, int count, long startTime, float scaleX, float scaleY) {
+        encoded = data;
+        encodedTimes = startTime >= 0;
+        encodedScaleX = scaleX;
+        encodedScaleY = scaleY;
+        this.startTime = startTime;
+        pointCount = count;
+        times = null;
+        path = null;
+        shape = null;
+        finished = true;
+        startDrawn = true;
+        segmentStart = Math.max(0, count - 1);
+    }
+
+    /**
+     * 还没解码时返回文件中的数据，是原图坐标，需要持有锁
+     */
+    ByteBuffer getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @return 没有时间时返回 -1
+     */
+    synchronized long getStartTime() {
+        return hasTimes() ? startTime : -1;
+    }
+
+    private void ensureDecoded() {
+        if (encoded == null)
+            return;
+        if (points.length < pointCount * 2)
+            points = new float[pointCount * 2];
+        times = encodedTimes ? new int[points.length / 2] : null;
+        boolean valid = MosaicSession.decodePoints(encoded, pointCount, points, times, encodedScaleX, encodedScaleY);
+        encoded = null;
+        if (!valid) {
+            //文件里这条笔画的数据坏了，当作没有点的笔画，什么都不画
+            Log.w(TAG, "drop corrupt path, points = " + pointCount);
+            pointCount = 0;
+            times = null;
+            segmentStart = 0;
+            bounds.setEmpty();
+            return;
+        }
+        if (pointCount > 0) {
+            lastX = points[pointCount * 2 - 2];
+            lastY = points[pointCount * 2 - 1];
+        }
+    }
+
+    /**
+     * 手指抬起，笔画不会再改变
+     */
+    public synchronized void finish() {
+        finished = true;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 是否有还没画的新线段
+     */
+    public synchronized boolean hasSegment() {
+        return pointCount - 1 > segmentStart;
+    }
+
+    /**
+     * 返回的是内部对象，需要在持有锁的时候使用
+     */
+    public RectF getSegmentBounds() {
+        return segmentBounds;
+    }
+
+    /**
+     * 只画新增的线段。线段两端用平头，再在连接点补一个圆，效果和整条路径的圆角连接一致，
+     * 同时避免在已经画过的位置重复叠加抗锯齿的边缘。
+     *
+     * @param scratch 用来放线段的路径，调用方复用
+     */
+    public synchronized void drawSegment(Canvas canvas, Paint paint, Path scratch) {
+        //解码时可能发现数据坏了，笔画变成空的
+        ensureDecoded();
+        if (!hasSegment())
+            return;
+        scratch.rewind();
+        scratch.moveTo(points[segmentStart * 2], points[segmentStart * 2 + 1]);
+        for (int i = segmentStart + 1; i < pointCount; i++) {
+            scratch.lineTo(points[i * 2], points[i * 2 + 1]);
+        }
+        paint.setStrokeCap(Paint.Cap.BUTT);
+        canvas.drawPath(scratch, paint);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        paint.setStyle(Paint.Style.FILL);
+        if (!startDrawn) {
+            canvas.drawCircle(points[segmentStart * 2], points[segmentStart * 2 + 1], size / 2f, paint);
+        }
+        canvas.drawCircle(lastX, lastY, size / 2f, paint);
+        paint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * 新增的线段已经画完，下一段从当前最后一个点开始
+     */
+    public synchronized void commitSegment() {
+        if (pointCount == 0)
+            return;
+        if (hasSegment())
+            startDrawn = true;
+        segmentStart = pointCount - 1;
+        segmentBounds.set(lastX, lastY, lastX, lastY);
+    }
 }
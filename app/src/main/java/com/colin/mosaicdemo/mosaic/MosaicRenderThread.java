@@ -0,0 +1,73 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * create by colin
+ * 2020/12/21
+ * <p>
+ * 画笔的渲染线程。多次请求在一帧开始之前会被合并，同一时间只会有一帧在渲染。
+ */
+class MosaicRenderThread {
+
+    interface Renderer {
+        /**
+         * 在渲染线程中执行
+         */
+        void onRenderFrame();
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Renderer mRenderer;
+    //渲染一帧期间持有
+    private final Object mFrameLock = new Object();
+    private boolean mRequested;
+    private volatile boolean mQuit;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MosaicRenderThread.this) {
+                mRequested = false;
+            }
+            synchronized (mFrameLock) {
+                if (!mQuit) {
+                    mRenderer.onRenderFrame();
+                }
+            }
+        }
+    };
+
+    MosaicRenderThread(Renderer renderer) {
+        mRenderer = renderer;
+        mThread = new HandlerThread("mosaic-render", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * 请求渲染一帧，已经有未开始的请求时忽略
+     */
+    void requestRender() {
+        synchronized (this) {
+            if (mRequested || mQuit)
+                return;
+            mRequested = true;
+        }
+        mHandler.post(mFrameRunnable);
+    }
+
+    /**
+     * 退出渲染线程，如果正在渲染会等这一帧结束后再返回，之后不会再有新的帧。
+     */
+    void quit() {
+        mQuit = true;
+        mThread.quit();
+        synchronized (mFrameLock) {
+            mRequested = false;
+        }
+    }
+}
@@ -0,0 +1,722 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.SparseArray;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * create by colin
+ * 2020/12/26
+ * <p>
+ * 编辑会话的二进制文件，保存路径集合、重做集合、画笔模式、纹理 Uri 和已经合并的底图，
+ * 进程被杀后可以直接恢复，不需要重放触摸输入。{@link MosaicJournal} 的快照也是这个格式，只是没有底图。
+ * <p>
+ * 点坐标量化到 1/16 像素，和前一个点做差后用 zigzag varint 保存，时间同样按差值保存。
+ * 读取时把文件映射到内存，只读笔画的头，点在第一次用到时才解码，数据不对的笔画在解码时丢掉。
+ * <p>
+ * 笔画的坐标、画笔大小和马赛克块大小都按原图保存，和编辑时用的工作图分辨率无关，
+ * 读取时换算到当前的工作图，下次内存预算不同、工作图尺寸变了也可以恢复。
+ * <p>
+ * 格式：
+ * <pre>
+ * int    MAGIC, VERSION
+ * int    原图宽, 高, currentModel, selectMskModel, blockSize
+ * int    纹理 Uri 的字节数（-1 表示没有）, UTF-8 字节
+ * int    路径数, 重做数
+ * int    底图宽, 高（保存时的工作图尺寸）, 底图瓦片数，每个瓦片：int 序号, int 字节数, deflate 后的 ALPHA_8 像素
+ * 笔画：  byte 类型, byte 标记, float 画笔大小, float[4] 点的范围, int 点数,
+ *        [long 起始时间], int 字节数, 点数据
+ * </pre>
+ */
+public class MosaicSession {
+
+    private static final int MAGIC = 0x4D534553; //MSES
+    private static final int VERSION = 2;
+    //坐标量化的精度
+    private static final float POINT_SCALE = 16f;
+    private static final int FLAG_TIMES = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //原图尺寸
+    private int width, height;
+    //工作图一个像素对应原图的边长，读取时由调用方的工作图尺寸决定
+    private float scaleX = 1f, scaleY = 1f;
+    private int workWidth, workHeight;
+    private int baseWidth, baseHeight;
+    private int currentModel, selectMskModel;
+    //原图像素
+    private int blockSize;
+    private Uri textureUri;
+    private final ArrayList<MosaicPath> paths = new ArrayList<>();
+    private final ArrayList<MosaicPath> redoPaths = new ArrayList<>();
+    //每条笔画在文件中的原始数据，日志压缩时直接写回
+    private final ArrayList<ByteBuffer> pathEntries = new ArrayList<>();
+    private final ArrayList<ByteBuffer> redoEntries = new ArrayList<>();
+    //底图瓦片，key 是瓦片序号，value 是映射文件中 deflate 后的数据
+    private final SparseArray<ByteBuffer> baseTiles = new SparseArray<>();
+
+    private MosaicSession() {
+    }
+
+    /**
+     * 由笔画的原始数据组成一个会话，笔画的点同样在用到时才解码
+     *
+     * @param width      原图尺寸
+     * @param workWidth  工作图尺寸，笔画换算到这个尺寸
+     * @param blockSize  原图像素
+     * @throws IOException 笔画数据不完整
+     */
+    static MosaicSession create(int width, int height, int workWidth, int workHeight, int currentModel,
+                                int selectMskModel, int blockSize, Uri textureUri, List<ByteBuffer> pathEntries,
+                                List<ByteBuffer> redoEntries) throws IOException {
+        MosaicSession session = new MosaicSession();
+        session.width = width;
+        session.height = height;
+        session.setWorkSize(workWidth, workHeight);
+        session.currentModel = currentModel;
+        session.selectMskModel = selectMskModel;
+        session.blockSize = blockSize;
+        session.textureUri = textureUri;
+        for (int i = 0; i < pathEntries.size(); i++) {
+            session.paths.add(decodePath(pathEntries.get(i), session.scaleX, session.scaleY));
+        }
+        for (int i = 0; i < redoEntries.size(); i++) {
+            session.redoPaths.add(decodePath(redoEntries.get(i), session.scaleX, session.scaleY));
+        }
+        session.pathEntries.addAll(pathEntries);
+        session.redoEntries.addAll(redoEntries);
+        return session;
+    }
+
+    private void setWorkSize(int workWidth, int workHeight) {
+        this.workWidth = workWidth;
+        this.workHeight = workHeight;
+        scaleX = width / (float) workWidth;
+        scaleY = height / (float) workHeight;
+    }
+
+    /**
+     * 原图的宽度
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getCurrentModel() {
+        return currentModel;
+    }
+
+    public int getSelectMskModel() {
+        return selectMskModel;
+    }
+
+    /**
+     * @return 工作图像素的块大小，没有设置过马赛克强度时为 0
+     */
+    public int getBlockSize() {
+        return blockSize > 0 ? Math.max(1, Math.round(blockSize / scaleX)) : 0;
+    }
+
+    /**
+     * 原图像素的块大小，和文件中保存的一样
+     */
+    int getSourceBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return 没有使用过纹理时为空
+     */
+    public Uri getTextureUri() {
+        return textureUri;
+    }
+
+    List<MosaicPath> getPaths() {
+        return paths;
+    }
+
+    List<MosaicPath> getRedoPaths() {
+        return redoPaths;
+    }
+
+    List<ByteBuffer> getPathEntries() {
+        return pathEntries;
+    }
+
+    List<ByteBuffer> getRedoEntries() {
+        return redoEntries;
+    }
+
+    /**
+     * 由保存的瓦片生成底图，保存时的工作图尺寸和现在不同时缩放到现在的尺寸
+     *
+     * @return 保存时没有底图时为空
+     */
+    TiledSurface createBaseSurface(BitmapPool pool) throws IOException {
+        if (baseTiles.size() == 0)
+            return null;
+        TiledSurface base = readBaseSurface(pool);
+        if (baseWidth == workWidth && baseHeight == workHeight)
+            return base;
+        return resample(base, workWidth, workHeight, pool);
+    }
+
+    private TiledSurface readBaseSurface(BitmapPool pool) throws IOException {
+        TiledSurface base = new TiledSurface(baseWidth, baseHeight, Bitmap.Config.ALPHA_8, pool);
+        int length = TiledSurface.TILE_SIZE * TiledSurface.TILE_SIZE;
+        ByteBuffer pixels = ByteBuffer.allocate(length);
+        byte[] input = new byte[0];
+        Inflater inflater = new Inflater();
+        try {
+            for (int i = 0; i < baseTiles.size(); i++) {
+                int index = baseTiles.keyAt(i);
+                if (index < 0 || index >= base.getCols() * base.getRows())
+                    throw new IOException("bad tile index " + index);
+                ByteBuffer data = baseTiles.valueAt(i).duplicate();
+                if (input.length < data.remaining())
+                    input = new byte[data.remaining()];
+                int inputLength = data.remaining();
+                data.get(input, 0, inputLength);
+                inflater.reset();
+                inflater.setInput(input, 0, inputLength);
+                if (inflater.inflate(pixels.array(), 0, length) != length)
+                    throw new IOException("truncated tile " + index);
+                pixels.clear();
+                base.obtainTile(index % base.getCols(), index / base.getCols()).copyPixelsFromBuffer(pixels);
+            }
+        } catch (DataFormatException e) {
+            base.clear();
+            throw new IOException(e);
+        } catch (IOException e) {
+            base.clear();
+            throw e;
+        } finally {
+            inflater.end();
+        }
+        return base;
+    }
+
+    //按比例把底图画到新的尺寸上，只分配旧瓦片覆盖到的瓦片，src 会被释放
+    private static TiledSurface resample(TiledSurface src, int width, int height, BitmapPool pool) {
+        TiledSurface dst = new TiledSurface(width, height, Bitmap.Config.ALPHA_8, pool);
+        float scaleX = width / (float) src.getWidth();
+        float scaleY = height / (float) src.getHeight();
+        boolean[] touched = new boolean[dst.getCols() * dst.getRows()];
+        Rect bounds = new Rect();
+        Rect range = new Rect();
+        int size = TiledSurface.TILE_SIZE;
+        for (int row = 0; row < src.getRows(); row++) {
+            for (int col = 0; col < src.getCols(); col++) {
+                if (src.getTile(col, row) == null)
+                    continue;
+                //过滤会向外扩散一个像素
+                bounds.set((int) Math.floor(col * size * scaleX) - 1, (int) Math.floor(row * size * scaleY) - 1,
+                        (int) Math.ceil((col + 1) * size * scaleX) + 1,
+                        (int) Math.ceil((row + 1) * size * scaleY) + 1);
+                if (!dst.getTileRange(bounds, range))
+                    continue;
+                for (int r = range.top; r <= range.bottom; r++) {
+                    for (int c = range.left; c <= range.right; c++) {
+                        touched[r * dst.getCols() + c] = true;
+                    }
+                }
+            }
+        }
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        for (int i = 0; i < touched.length; i++) {
+            if (!touched[i])
+                continue;
+            Canvas canvas = dst.lockTile(i % dst.getCols(), i / dst.getCols());
+            canvas.scale(scaleX, scaleY);
+            src.drawTo(canvas, 0, 0, paint);
+            dst.unlockTile();
+        }
+        src.clear();
+        return dst;
+    }
+
+    /**
+     * 写入会话文件，先写到临时文件再替换，写到一半被杀也不会破坏旧文件。
+     * 需要在主线程调用，和修改路径集合的地方在同一个线程。
+     *
+     * @param width     原图尺寸
+     * @param workWidth 工作图尺寸，笔画和块大小按比例换算成原图的
+     * @param base      已经合并的底图，读取时持有它的锁，可以为空
+     */
+    static void write(File file, int width, int height, int workWidth, int workHeight, int currentModel,
+                      int selectMskModel, int blockSize, Uri textureUri, List<MosaicPath> paths,
+                      List<MosaicPath> redoPaths, TiledSurface base) throws IOException {
+        float scaleX = width / (float) workWidth;
+        float scaleY = height / (float) workHeight;
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            Writer writer = new Writer(stream.getChannel(), 64 * 1024);
+            writeHeader(writer, width, height, currentModel, selectMskModel,
+                    blockSize > 0 ? Math.round(blockSize * scaleX) : 0, textureUri,
+                    countEncodable(paths), countEncodable(redoPaths));
+            writeBase(writer, base);
+            PointEncoder encoder = new PointEncoder();
+            writePaths(writer, encoder, paths, scaleX, scaleY);
+            writePaths(writer, encoder, redoPaths, scaleX, scaleY);
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        replace(temp, file);
+    }
+
+    /**
+     * 和 {@link #write} 一样，但笔画已经是编码好的原始数据，没有底图。块大小是原图像素
+     */
+    static void writeEntries(File file, int width, int height, int currentModel, int selectMskModel,
+                             int blockSize, Uri textureUri, List<ByteBuffer> pathEntries,
+                             List<ByteBuffer> redoEntries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            Writer writer = new Writer(stream.getChannel(), 64 * 1024);
+            writeHeader(writer, width, height, currentModel, selectMskModel, blockSize, textureUri,
+                    pathEntries.size(), redoEntries.size());
+            writeBase(writer, null);
+            for (int i = 0; i < pathEntries.size(); i++) {
+                writer.put(pathEntries.get(i).duplicate());
+            }
+            for (int i = 0; i < redoEntries.size(); i++) {
+                writer.put(redoEntries.get(i).duplicate());
+            }
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        replace(temp, file);
+    }
+
+    //写完的临时文件替换正式文件
+    static void replace(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed " + file);
+        }
+    }
+
+    private static void writeHeader(Writer writer, int width, int height, int currentModel, int selectMskModel,
+                                    int blockSize, Uri textureUri, int pathCount, int redoCount)
+            throws IOException {
+        writer.putInt(MAGIC);
+        writer.putInt(VERSION);
+        writer.putInt(width);
+        writer.putInt(height);
+        writer.putInt(currentModel);
+        writer.putInt(selectMskModel);
+        writer.putInt(blockSize);
+        writeUri(writer, textureUri);
+        writer.putInt(pathCount);
+        writer.putInt(redoCount);
+    }
+
+    static void writeUri(Writer writer, Uri uri) throws IOException {
+        if (uri == null) {
+            writer.putInt(-1);
+        } else {
+            byte[] bytes = uri.toString().getBytes(UTF_8);
+            writer.putInt(bytes.length);
+            writer.put(bytes, bytes.length);
+        }
+    }
+
+    static Uri readUri(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return Uri.parse(new String(bytes, UTF_8));
+    }
+
+    /**
+     * 把一条笔画编码成和会话文件中一样的数据，需要在笔画画完之后调用。
+     * 人像轮廓之类的形状不是由点组成的，不能编码
+     *
+     * @param scaleX 工作图一个像素对应原图的边长
+     */
+    static ByteBuffer encodePath(MosaicPath path, float scaleX, float scaleY) {
+        if (path.hasShape())
+            throw new IllegalArgumentException("shape path can not be encoded");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Writer writer = new Writer(Channels.newChannel(out), 256);
+            writePath(writer, new PointEncoder(), path, scaleX, scaleY);
+            writer.flush();
+        } catch (IOException e) {
+            //写到内存里，不会出现
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * 从编码好的数据读出一条笔画，点在用到时才解码
+     *
+     * @param scaleX 工作图一个像素对应原图的边长
+     */
+    static MosaicPath decodePath(ByteBuffer entry, float scaleX, float scaleY) throws IOException {
+        try {
+            return readPath(entry.duplicate(), scaleX, scaleY);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt path", e);
+        }
+    }
+
+    /**
+     * 映射会话文件并读出笔画，点数据只在用到时才解码
+     *
+     * @param workWidth 工作图尺寸，笔画换算到这个尺寸
+     */
+    static MosaicSession read(File file, int workWidth, int workHeight) throws IOException {
+        MappedByteBuffer map;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            //关闭文件后映射仍然有效
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        try {
+            return parse(map, workWidth, workHeight);
+        } catch (RuntimeException e) {
+            //越界之类的错误说明文件损坏
+            throw new IOException("corrupt session " + file, e);
+        }
+    }
+
+    private static MosaicSession parse(ByteBuffer map, int workWidth, int workHeight) throws IOException {
+        if (map.getInt() != MAGIC)
+            throw new IOException("not a session file");
+        int version = map.getInt();
+        if (version != VERSION)
+            throw new IOException("unsupported version " + version);
+        MosaicSession session = new MosaicSession();
+        session.width = map.getInt();
+        session.height = map.getInt();
+        session.setWorkSize(workWidth, workHeight);
+        session.currentModel = map.getInt();
+        session.selectMskModel = map.getInt();
+        session.blockSize = map.getInt();
+        session.textureUri = readUri(map);
+        int pathCount = map.getInt();
+        int redoCount = map.getInt();
+        session.baseWidth = map.getInt();
+        session.baseHeight = map.getInt();
+        int tileCount = map.getInt();
+        for (int i = 0; i < tileCount; i++) {
+            int index = map.getInt();
+            int length = map.getInt();
+            session.baseTiles.put(index, slice(map, length));
+        }
+        readPaths(map, pathCount, session.paths, session.pathEntries, session.scaleX, session.scaleY);
+        readPaths(map, redoCount, session.redoPaths, session.redoEntries, session.scaleX, session.scaleY);
+        return session;
+    }
+
+    private static void readPaths(ByteBuffer map, int count, List<MosaicPath> out, List<ByteBuffer> entries,
+                                  float scaleX, float scaleY) {
+        for (int i = 0; i < count; i++) {
+            int start = map.position();
+            out.add(readPath(map, scaleX, scaleY));
+            ByteBuffer entry = map.duplicate();
+            entry.position(start);
+            entry.limit(map.position());
+            entries.add(entry.slice());
+        }
+    }
+
+    //文件中是原图坐标，换算到工作图
+    private static MosaicPath readPath(ByteBuffer map, float scaleX, float scaleY) {
+        MosaicPath path = new MosaicPath();
+        path.type = map.get();
+        int flags = map.get();
+        path.size = map.getFloat() / scaleX;
+        path.bounds.set(map.getFloat() / scaleX, map.getFloat() / scaleY,
+                map.getFloat() / scaleX, map.getFloat() / scaleY);
+        int pointCount = map.getInt();
+        long startTime = (flags & FLAG_TIMES) != 0 ? map.getLong() : -1;
+        int length = map.getInt();
+        //点数据到解码时才检查，这里只保证点数和长度不会越界，每个点至少占两个字节
+        if (length < 0 || length > map.remaining() || pointCount < 0 || pointCount > length / 2)
+            throw new IllegalArgumentException("bad path header");
+        path.setEncoded(slice(map, length), pointCount, startTime, 1f / scaleX, 1f / scaleY);
+        return path;
+    }
+
+    //从当前位置切出 length 字节，并跳过它们
+    private static ByteBuffer slice(ByteBuffer map, int length) {
+        ByteBuffer slice = map.duplicate();
+        slice.limit(map.position() + length);
+        slice = slice.slice();
+        map.position(map.position() + length);
+        return slice;
+    }
+
+    /**
+     * 解码一条笔画的点
+     *
+     * @param outTimes 为空时跳过时间
+     * @param scaleX   点从文件中的原图坐标换算到输出坐标的比例
+     * @return 数据不完整或者有多余的字节时返回 false，输出的内容不能使用
+     */
+    static boolean decodePoints(ByteBuffer data, int count, float[] outPoints, int[] outTimes,
+                                float scaleX, float scaleY) {
+        ByteBuffer buffer = data.duplicate();
+        try {
+            int x = 0, y = 0;
+            for (int i = 0; i < count; i++) {
+                x += readVarInt(buffer);
+                y += readVarInt(buffer);
+                outPoints[i * 2] = x / POINT_SCALE * scaleX;
+                outPoints[i * 2 + 1] = y / POINT_SCALE * scaleY;
+            }
+            if (outTimes == null)
+                return true;
+            int time = 0;
+            for (int i = 0; i < count; i++) {
+                time += readVarInt(buffer);
+                outTimes[i] = time;
+            }
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+        return !buffer.hasRemaining();
+    }
+
+    private static int countEncodable(List<MosaicPath> paths) {
+        int count = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            if (!paths.get(i).hasShape())
+                count++;
+        }
+        return count;
+    }
+
+    private static void writeBase(Writer writer, TiledSurface base) throws IOException {
+        if (base == null) {
+            writer.putInt(0);
+            writer.putInt(0);
+            writer.putInt(0);
+            return;
+        }
+        synchronized (base) {
+            writer.putInt(base.getWidth());
+            writer.putInt(base.getHeight());
+            writer.putInt(base.getTileCount());
+            int length = TiledSurface.TILE_SIZE * TiledSurface.TILE_SIZE;
+            ByteBuffer pixels = ByteBuffer.allocate(length);
+            //最坏情况下 deflate 的输出比输入略大
+            byte[] compressed = new byte[length + length / 1000 + 64];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                for (int row = 0; row < base.getRows(); row++) {
+                    for (int col = 0; col < base.getCols(); col++) {
+                        Bitmap tile = base.getTile(col, row);
+                        if (tile == null)
+                            continue;
+                        pixels.clear();
+                        tile.copyPixelsToBuffer(pixels);
+                        deflater.reset();
+                        deflater.setInput(pixels.array(), 0, length);
+                        deflater.finish();
+                        int size = deflater.deflate(compressed);
+                        writer.putInt(row * base.getCols() + col);
+                        writer.putInt(size);
+                        writer.put(compressed, size);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    private static void writePaths(Writer writer, PointEncoder encoder, List<MosaicPath> paths,
+                                   float scaleX, float scaleY) throws IOException {
+        for (int i = 0; i < paths.size(); i++) {
+            MosaicPath path = paths.get(i);
+            //人像轮廓之类的形状不是由点组成的，不保存，由调用方记录
+            if (!path.hasShape())
+                writePath(writer, encoder, path, scaleX, scaleY);
+        }
+    }
+
+    //工作图坐标换算成原图坐标写出
+    private static void writePath(Writer writer, PointEncoder encoder, MosaicPath path, float scaleX, float scaleY)
+            throws IOException {
+        synchronized (path) {
+            ByteBuffer encoded = path.getEncoded();
+            int pointCount = path.getPointCount();
+            long startTime = path.getStartTime();
+            writer.putByte(path.type);
+            writer.putByte(startTime >= 0 ? FLAG_TIMES : 0);
+            writer.putFloat(path.size * scaleX);
+            writer.putFloat(path.bounds.left * scaleX);
+            writer.putFloat(path.bounds.top * scaleY);
+            writer.putFloat(path.bounds.right * scaleX);
+            writer.putFloat(path.bounds.bottom * scaleY);
+            writer.putInt(pointCount);
+            if (startTime >= 0)
+                writer.putLong(startTime);
+            if (encoded != null) {
+                //还没解码过的笔画直接写回原来的数据，本来就是原图坐标
+                writer.putInt(encoded.remaining());
+                writer.put(encoded.duplicate());
+            } else {
+                encoder.encode(path, pointCount, scaleX, scaleY);
+                writer.putInt(encoder.length);
+                writer.put(encoder.bytes, encoder.length);
+            }
+        }
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        //zigzag
+        return (result >>> 1) ^ -(result & 1);
+    }
+
+    //把一条笔画的点编码成 varint，需要持有笔画的锁
+    private static class PointEncoder {
+        byte[] bytes = new byte[256];
+        int length;
+
+        void encode(MosaicPath path, int count, float scaleX, float scaleY) {
+            length = 0;
+            int lastX = 0, lastY = 0;
+            for (int i = 0; i < count; i++) {
+                int x = Math.round(path.getX(i) * scaleX * POINT_SCALE);
+                int y = Math.round(path.getY(i) * scaleY * POINT_SCALE);
+                writeVarInt(x - lastX);
+                writeVarInt(y - lastY);
+                lastX = x;
+                lastY = y;
+            }
+            if (!path.hasTimes())
+                return;
+            long start = path.getTime(0);
+            int lastTime = 0;
+            for (int i = 0; i < count; i++) {
+                int time = (int) (path.getTime(i) - start);
+                writeVarInt(time - lastTime);
+                lastTime = time;
+            }
+        }
+
+        private void writeVarInt(int value) {
+            if (bytes.length - length < 5)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            //zigzag，小的负数也只占一个字节
+            int v = (value << 1) ^ (value >> 31);
+            while ((v & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[length++] = (byte) v;
+        }
+    }
+
+    //带缓冲的写入，缓冲满了写进 channel
+    static class Writer {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer;
+
+        Writer(WritableByteChannel channel, int bufferSize) {
+            this.channel = channel;
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+
+        private void ensure(int length) throws IOException {
+            if (buffer.remaining() < length)
+                flush();
+        }
+
+        void putByte(int value) throws IOException {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(4);
+            buffer.putFloat(value);
+        }
+
+        void put(byte[] bytes, int length) throws IOException {
+            put(ByteBuffer.wrap(bytes, 0, length));
+        }
+
+        void put(ByteBuffer data) throws IOException {
+            if (data.remaining() > buffer.remaining()) {
+                //大块数据不经过缓冲
+                flush();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                return;
+            }
+            buffer.put(data);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
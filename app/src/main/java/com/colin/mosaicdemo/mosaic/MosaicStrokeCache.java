@@ -0,0 +1,135 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.LruCache;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+/**
+ * create by colin
+ * 2020/12/24
+ * <p>
+ * 笔画覆盖率缓存。画完的笔画不会再改变，把它在包围盒范围内栅格化成一张 ALPHA_8 的印章，
+ * 重画所有路径时直接贴印章（普通笔画 SRC_OVER，橡皮擦 DST_OUT），不需要再把路径细分成三角形。
+ * <p>
+ * 按字节数限制大小，LRU 淘汰，内存紧张时整体缩小。印章在原图的像素网格上栅格化，
+ * 贴上去的结果和直接画路径一致。
+ */
+public class MosaicStrokeCache {
+
+    private final BitmapPool mPool;
+    private final LruCache<MosaicPath, Stamp> mCache;
+    private final Paint mPaintStamp;
+    private final Paint mPaintStampClean;
+    private final Canvas mCanvas = new Canvas();
+    private final Rect mBounds = new Rect();
+
+    private static class Stamp {
+        final Bitmap coverage;
+        final int left, top;
+
+        Stamp(Bitmap coverage, int left, int top) {
+            this.coverage = coverage;
+            this.left = left;
+            this.top = top;
+        }
+    }
+
+    /**
+     * @param pool     印章的来源和去处
+     * @param maxBytes 缓存的字节上限
+     */
+    public MosaicStrokeCache(BitmapPool pool, int maxBytes) {
+        mPool = pool;
+        mCache = new LruCache<MosaicPath, Stamp>(maxBytes) {
+            @Override
+            protected int sizeOf(MosaicPath key, Stamp value) {
+                return value.coverage.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, MosaicPath key, Stamp oldValue, Stamp newValue) {
+                if (oldValue != newValue) {
+                    mPool.put(oldValue.coverage);
+                }
+            }
+        };
+        //ALPHA_8 的图用画笔颜色着色，颜色需要不透明
+        mPaintStamp = new Paint();
+        mPaintStampClean = new Paint();
+        mPaintStampClean.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+    }
+
+    /**
+     * 默认使用堆上限的 1/16
+     */
+    public static int getDefaultMaxBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    public synchronized boolean contains(MosaicPath path) {
+        return mCache.get(path) != null;
+    }
+
+    /**
+     * 栅格化一条画完的笔画
+     *
+     * @param strokePaint 普通笔画的画笔，橡皮擦也用它来生成覆盖率
+     * @param width       原图宽度，超出原图的部分不保存
+     */
+    public synchronized void put(MosaicPath path, Paint strokePaint, int width, int height) {
+        float half = path.size / 2f + 2;
+        mBounds.set((int) Math.floor(path.bounds.left - half), (int) Math.floor(path.bounds.top - half),
+                (int) Math.ceil(path.bounds.right + half), (int) Math.ceil(path.bounds.bottom + half));
+        if (!mBounds.intersect(0, 0, width, height))
+            return;
+        Bitmap coverage = mPool.get(mBounds.width(), mBounds.height(), Bitmap.Config.ALPHA_8);
+        mCanvas.setBitmap(coverage);
+        mCanvas.save();
+        mCanvas.translate(-mBounds.left, -mBounds.top);
+        strokePaint.setStrokeWidth(path.size);
+        mCanvas.drawPath(path.getPath(), strokePaint);
+        mCanvas.restore();
+        mCanvas.setBitmap(null);
+        mCache.put(path, new Stamp(coverage, mBounds.left, mBounds.top));
+    }
+
+    /**
+     * 把笔画的印章贴到 canvas 上，canvas 是原图坐标系
+     *
+     * @return 没有缓存时返回 false
+     */
+    public synchronized boolean draw(MosaicPath path, Canvas canvas) {
+        Stamp stamp = mCache.get(path);
+        if (stamp == null)
+            return false;
+        Paint paint = path.type == MosaicPath.TYPE_CLEAN ? mPaintStampClean : mPaintStamp;
+        canvas.drawBitmap(stamp.coverage, stamp.left, stamp.top, paint);
+        return true;
+    }
+
+    public synchronized void remove(MosaicPath path) {
+        mCache.remove(path);
+    }
+
+    public synchronized void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * 响应 {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+}
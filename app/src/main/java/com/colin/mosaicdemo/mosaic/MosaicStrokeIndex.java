@@ -0,0 +1,187 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * create by colin
+ * 2020/12/25
+ * <p>
+ * 笔画的空间索引。把原图切成和瓦片一样大的格子，每个格子记录经过它的笔画，
+ * 只需要重画一部分区域时，不用遍历所有笔画。
+ * <p>
+ * 笔画按加入的先后排序，后加入的在上面，和路径图上的绘制顺序一致。撤销后再重做的笔画重新排到最上面。
+ * 只在渲染线程中使用。
+ */
+class MosaicStrokeIndex {
+
+    private static final int CELL_SIZE = TiledSurface.TILE_SIZE;
+
+    private final int mCols, mRows;
+    private final ArrayList<Entry>[] mCells;
+    //MosaicPath 没有重写 equals，按对象区分
+    private final HashMap<MosaicPath, Entry> mEntries = new HashMap<>();
+    private final ArrayList<Entry> mResult = new ArrayList<>();
+    private final Rect mRange = new Rect();
+    private int mSequence;
+    //每次查询加一，用来去掉在多个格子里重复出现的笔画
+    private int mQueryMark;
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    };
+
+    private static class Entry {
+        final MosaicPath path;
+        final int sequence;
+        //包含画笔宽度的范围
+        final RectF bounds = new RectF();
+        //已经登记过的格子，包含 right 和 bottom
+        final Rect cells = new Rect();
+        boolean hasCells;
+        int mark;
+
+        Entry(MosaicPath path, int sequence) {
+            this.path = path;
+            this.sequence = sequence;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    MosaicStrokeIndex(int width, int height) {
+        mCols = MosaicIntegralImage.getBlockCount(width, CELL_SIZE);
+        mRows = MosaicIntegralImage.getBlockCount(height, CELL_SIZE);
+        mCells = new ArrayList[mCols * mRows];
+    }
+
+    /**
+     * 加入或更新一条笔画。笔画只会变大，新覆盖到的格子会补登记。
+     *
+     * @param strokeBounds 包含画笔宽度的范围
+     */
+    void put(MosaicPath path, RectF strokeBounds) {
+        Entry entry = mEntries.get(path);
+        if (entry == null) {
+            entry = new Entry(path, mSequence++);
+            mEntries.put(path, entry);
+            entry.bounds.set(strokeBounds);
+        } else {
+            entry.bounds.union(strokeBounds);
+        }
+        if (!getCellRange(entry.bounds, mRange) || (entry.hasCells && mRange.equals(entry.cells)))
+            return;
+        Rect old = entry.cells;
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                if (entry.hasCells && col >= old.left && col <= old.right && row >= old.top && row <= old.bottom)
+                    continue;
+                int index = row * mCols + col;
+                if (mCells[index] == null)
+                    mCells[index] = new ArrayList<>();
+                mCells[index].add(entry);
+            }
+        }
+        entry.cells.set(mRange);
+        entry.hasCells = true;
+    }
+
+    void remove(MosaicPath path) {
+        Entry entry = mEntries.remove(path);
+        if (entry == null || !entry.hasCells)
+            return;
+        Rect cells = entry.cells;
+        for (int row = cells.top; row <= cells.bottom; row++) {
+            for (int col = cells.left; col <= cells.right; col++) {
+                ArrayList<Entry> cell = mCells[row * mCols + col];
+                if (cell != null)
+                    cell.remove(entry);
+            }
+        }
+    }
+
+    void clear() {
+        mEntries.clear();
+        for (int i = 0; i < mCells.length; i++) {
+            mCells[i] = null;
+        }
+        mSequence = 0;
+    }
+
+    /**
+     * 找出和 region 相交的笔画
+     *
+     * @param out 按绘制顺序排列，会先清空
+     */
+    void query(RectF region, List<MosaicPath> out) {
+        out.clear();
+        if (!getCellRange(region, mRange))
+            return;
+        int mark = ++mQueryMark;
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                ArrayList<Entry> cell = mCells[row * mCols + col];
+                if (cell == null)
+                    continue;
+                for (int i = 0; i < cell.size(); i++) {
+                    Entry entry = cell.get(i);
+                    if (entry.mark != mark && RectF.intersects(entry.bounds, region)) {
+                        entry.mark = mark;
+                        mResult.add(entry);
+                    }
+                }
+            }
+        }
+        Collections.sort(mResult, ORDER);
+        for (int i = 0; i < mResult.size(); i++) {
+            out.add(mResult.get(i).path);
+        }
+        mResult.clear();
+    }
+
+    /**
+     * path 下面在 region 范围内是否有马赛克或纹理笔画，橡皮擦下面什么都没有时不需要画
+     *
+     * @return path 不在索引中时保守地返回 true
+     */
+    boolean hasCoverageBelow(MosaicPath path, RectF region) {
+        Entry self = mEntries.get(path);
+        if (self == null)
+            return true;
+        if (!getCellRange(region, mRange))
+            return false;
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                ArrayList<Entry> cell = mCells[row * mCols + col];
+                if (cell == null)
+                    continue;
+                for (int i = 0; i < cell.size(); i++) {
+                    Entry entry = cell.get(i);
+                    if (entry.sequence < self.sequence && entry.path.type != MosaicPath.TYPE_CLEAN
+                            && RectF.intersects(entry.bounds, region))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //和原图没有交集时返回 false
+    private boolean getCellRange(RectF bounds, Rect out) {
+        if (bounds.isEmpty() || bounds.right <= 0 || bounds.bottom <= 0
+                || bounds.left >= mCols * CELL_SIZE || bounds.top >= mRows * CELL_SIZE)
+            return false;
+        out.set(Math.max(0, (int) bounds.left / CELL_SIZE), Math.max(0, (int) bounds.top / CELL_SIZE),
+                Math.min(mCols - 1, (int) Math.ceil(bounds.right - 1) / CELL_SIZE),
+                Math.min(mRows - 1, (int) Math.ceil(bounds.bottom - 1) / CELL_SIZE));
+        return true;
+    }
+}
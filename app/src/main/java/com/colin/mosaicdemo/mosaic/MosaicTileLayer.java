@@ -0,0 +1,169 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+/**
+ * create by colin
+ * 2020/12/17
+ * <p>
+ * 按需计算的马赛克图层。把原图分成若干瓦片，只有笔画的范围第一次碰到某个瓦片时才去算这个瓦片的马赛克，
+ * 算完后缓存下来。不需要在开始画之前对整张图做任何计算，内存也只和涂抹过的区域有关。
+ * <p>
+ * 每个瓦片保存的是块图（一个像素对应一个马赛克块），绘制时通过 shader 放大到原图坐标。
+ */
+public class MosaicTileLayer {
+
+    private static final int TILE_SIZE = 256;
+
+    private final Bitmap mSource;
+    private final BitmapPool mPool;
+    private final int mBlockSize;
+    //瓦片边长，是块大小的整数倍，保证所有瓦片的块网格是对齐的
+    private final int mTileSize;
+    private final int mCols, mRows;
+    private final Tile[] mTiles;
+    private int mTileCount;
+
+    private static class Tile {
+        Bitmap blocks;
+        BitmapShader shader;
+    }
+
+    public MosaicTileLayer(Bitmap source, int blockSize, BitmapPool pool) {
+        mSource = source;
+        mPool = pool;
+        mBlockSize = Math.max(1, blockSize);
+        mTileSize = MosaicIntegralImage.getBlockCount(TILE_SIZE, mBlockSize) * mBlockSize;
+        mCols = MosaicIntegralImage.getBlockCount(source.getWidth(), mTileSize);
+        mRows = MosaicIntegralImage.getBlockCount(source.getHeight(), mTileSize);
+        mTiles = new Tile[mCols * mRows];
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public Bitmap getSource() {
+        return mSource;
+    }
+
+    /**
+     * 已经计算过的瓦片数
+     */
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+    public interface TileDrawer {
+        /**
+         * 在一个瓦片的范围内绘制，canvas 已经裁剪到瓦片，paint 已经设置好瓦片的 shader
+         */
+        void draw(Canvas canvas, Paint paint);
+    }
+
+    /**
+     * 用马赛克画一条路径，路径范围内还没计算的瓦片会在这里计算。
+     *
+     * @param canvas 原图坐标系的画布
+     * @param bounds 路径点的范围
+     * @param paint  路径画笔，shader 会被替换成各个瓦片的 shader
+     */
+    public void drawPath(Canvas canvas, final Path path, RectF bounds, Paint paint) {
+        draw(canvas, bounds, paint, new TileDrawer() {
+            @Override
+            public void draw(Canvas canvas, Paint paint) {
+                canvas.drawPath(path, paint);
+            }
+        });
+    }
+
+    /**
+     * 对 bounds（加上画笔宽度）覆盖到的每个瓦片执行一次 drawer
+     */
+    public void draw(Canvas canvas, RectF bounds, Paint paint, TileDrawer drawer) {
+        float half = paint.getStrokeWidth() / 2f + 1;
+        if (bounds.right + half < 0 || bounds.bottom + half < 0
+                || bounds.left - half >= mSource.getWidth() || bounds.top - half >= mSource.getHeight())
+            return;
+        int left = Math.max(0, (int) ((bounds.left - half) / mTileSize));
+        int top = Math.max(0, (int) ((bounds.top - half) / mTileSize));
+        int right = Math.min(mCols - 1, (int) ((bounds.right + half) / mTileSize));
+        int bottom = Math.min(mRows - 1, (int) ((bounds.bottom + half) / mTileSize));
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                Tile tile = obtainTile(col, row);
+                int x = col * mTileSize;
+                int y = row * mTileSize;
+                canvas.save();
+                canvas.clipRect(x, y, x + mTileSize, y + mTileSize);
+                paint.setShader(tile.shader);
+                drawer.draw(canvas, paint);
+                canvas.restore();
+            }
+        }
+    }
+
+    private Tile obtainTile(int col, int row) {
+        int index = row * mCols + col;
+        Tile tile = mTiles[index];
+        if (tile == null) {
+            tile = computeTile(col, row);
+            mTiles[index] = tile;
+            mTileCount++;
+        }
+        return tile;
+    }
+
+    private Tile computeTile(int col, int row) {
+        int x = col * mTileSize;
+        int y = row * mTileSize;
+        int width = Math.min(mTileSize, mSource.getWidth() - x);
+        int height = Math.min(mTileSize, mSource.getHeight() - y);
+        int[] pixels = new int[width * height];
+        mSource.getPixels(pixels, 0, width, x, y, width, height);
+        int blockCols = MosaicIntegralImage.getBlockCount(width, mBlockSize);
+        int blockRows = MosaicIntegralImage.getBlockCount(height, mBlockSize);
+        int[] blocks = new int[blockCols * blockRows];
+        for (int j = 0; j < blockRows; j++) {
+            int by = j * mBlockSize;
+            int bh = Math.min(mBlockSize, height - by);
+            for (int i = 0; i < blockCols; i++) {
+                int bx = i * mBlockSize;
+                int bw = Math.min(mBlockSize, width - bx);
+                blocks[j * blockCols + i] = MosaicEngine.averageBlock(pixels, width, bx, by, bw, bh);
+            }
+        }
+        Tile tile = new Tile();
+        tile.blocks = mPool.getDirty(blockCols, blockRows, Bitmap.Config.ARGB_8888);
+        tile.blocks.setHasAlpha(mSource.hasAlpha());
+        tile.blocks.setPixels(blocks, 0, blockCols, 0, 0, blockCols, blockRows);
+        tile.shader = new BitmapShader(tile.blocks, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        Matrix matrix = new Matrix();
+        matrix.setScale(mBlockSize, mBlockSize);
+        matrix.postTranslate(x, y);
+        tile.shader.setLocalMatrix(matrix);
+        return tile;
+    }
+
+    /**
+     * 把所有瓦片还给 pool
+     */
+    public void release() {
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] != null) {
+                mPool.put(mTiles[i].blocks);
+                mTiles[i] = null;
+            }
+        }
+        mTileCount = 0;
+    }
+}
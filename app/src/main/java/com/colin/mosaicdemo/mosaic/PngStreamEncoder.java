@@ -0,0 +1,491 @@
+package com.colin.mosaicdemo.mosaic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * create by colin
+ * 2020/12/28
+ * <p>
+ * 按行写出的 PNG 编码器。调用方一次给几行像素，压缩后的数据随时写到输出流里，
+ * 不需要整张图在内存中，{@link android.graphics.Bitmap#compress} 做不到这一点。
+ * <p>
+ * 每行按 PNG 的五种过滤方式各试一次，选绝对值和最小的一种，和 libpng 默认的策略一样。
+ * <p>
+ * 和 pigz 一样，每次给的行切成若干段，每段用独立的 Deflater 在 fork-join 线程池里并行压缩，
+ * 段之间用 SYNC_FLUSH 对齐到字节，前一段末尾的 32K 作为预设字典，拼起来就是一个完整的 zlib 流，
+ * 压缩率和单线程基本一样。校验和按段分别计算再合并。给的 pool 为空时在调用线程中按顺序压缩，
+ * 输出和并行时逐字节相同。
+ * <p>
+ * 只依赖 JDK，可以在 JVM 上测试。
+ */
+class PngStreamEncoder {
+
+    /**
+     * 按需读取像素的来源
+     */
+    interface RowSource {
+        /**
+         * 把 [top, top + rows) 行读到 out 中，非预乘的 ARGB
+         *
+         * @param stride out 的行宽
+         */
+        void readRows(int top, int rows, int[] out, int stride) throws IOException;
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+    //一个 IDAT 块的最大长度
+    private static final int CHUNK_SIZE = 64 * 1024;
+    //每段过滤后的目标字节数，和 pigz 的默认块大小一样
+    private static final int SEGMENT_BYTES = 128 * 1024;
+    //deflate 的窗口大小，也是预设字典的最大长度
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    //encode 一次读取的字节数
+    private static final int SOURCE_BAND_BYTES = 4 * 1024 * 1024;
+
+    private final OutputStream mOut;
+    private final int mWidth, mHeight;
+    //每个像素的字节数，RGB 为 3，RGBA 为 4
+    private final int mBpp;
+    private final int mRowBytes;
+    private final int mLevel;
+    private final ForkJoinPool mPool;
+    private final CRC32 mCrc = new CRC32();
+    //空闲的 Deflater，各段复用，需要持有它的锁
+    private final ArrayDeque<Deflater> mDeflaters = new ArrayDeque<>();
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+
+    //上一次给的最后一行的原始字节，第一行的上一行是全 0
+    private final byte[] mPrevRow;
+    //已经压缩的数据的最后 32K，作为下一次第一段的字典
+    private byte[] mDictionary = new byte[0];
+    //本次所有行过滤后的数据，每行第一个字节是过滤方式
+    private byte[] mFiltered = new byte[0];
+    //已经压缩的数据的 Adler-32
+    private long mAdler = 1;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength;
+    private int mWrittenRows;
+
+    /**
+     * @param hasAlpha 为 false 时只写 RGB，文件更小
+     * @param level    {@link Deflater} 的压缩级别
+     * @param pool     并行压缩用的线程池，为空时在调用线程中压缩
+     */
+    PngStreamEncoder(OutputStream out, int width, int height, boolean hasAlpha, int level, ForkJoinPool pool)
+            throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("empty image " + width + "x" + height);
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mBpp = hasAlpha ? 4 : 3;
+        mRowBytes = width * mBpp;
+        mLevel = level;
+        mPool = pool;
+        mPrevRow = new byte[mRowBytes];
+        writeHeader(hasAlpha);
+        //zlib 头，32K 窗口，不带字典，FLEVEL 只是提示，固定写默认值
+        mChunk[mChunkLength++] = 0x78;
+        mChunk[mChunkLength++] = (byte) 0x9C;
+    }
+
+    /**
+     * 从 source 中按分带读出所有行并编码，适合已经在内存里的整张图
+     */
+    static void encode(RowSource source, int width, int height, boolean hasAlpha, int level, ForkJoinPool pool,
+                       OutputStream out) throws IOException {
+        PngStreamEncoder encoder = new PngStreamEncoder(out, width, height, hasAlpha, level, pool);
+        boolean finished = false;
+        try {
+            int bandRows = Math.max(1, Math.min(height, SOURCE_BAND_BYTES / (width * 4)));
+            int[] pixels = new int[width * bandRows];
+            for (int top = 0; top < height; top += bandRows) {
+                int rows = Math.min(bandRows, height - top);
+                source.readRows(top, rows, pixels, width);
+                encoder.writeRows(pixels, 0, width, rows);
+            }
+            encoder.finish();
+            finished = true;
+        } finally {
+            if (!finished)
+                encoder.release();
+        }
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 写出 rows 行像素，返回时 pixels 已经用完，可以复用
+     *
+     * @param pixels 非预乘的 ARGB，和 {@link android.graphics.Bitmap#getPixels} 的结果一样
+     * @param stride pixels 的行宽
+     */
+    void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (rows <= 0)
+            return;
+        if (mWrittenRows + rows > mHeight)
+            throw new IllegalStateException("too many rows");
+        int lineBytes = mRowBytes + 1;
+        if (mFiltered.length < rows * lineBytes)
+            mFiltered = new byte[rows * lineBytes];
+        boolean last = mWrittenRows + rows == mHeight;
+        int segmentRows = Math.max(1, SEGMENT_BYTES / lineBytes);
+        mSegments.clear();
+        for (int row = 0; row < rows; row += segmentRows) {
+            int end = Math.min(rows, row + segmentRows);
+            mSegments.add(new Segment(pixels, offset, stride, row, end, last && end == rows));
+        }
+        runAll();
+        for (int i = 0; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            mAdler = combineAdler(mAdler, segment.adler, segment.length());
+            write(segment.output, segment.outputLength);
+        }
+        mSegments.clear();
+        toBytes(pixels, offset + (rows - 1) * stride, mPrevRow);
+        mDictionary = getDictionary(rows * lineBytes);
+        mWrittenRows += rows;
+    }
+
+    /**
+     * 写完所有行之后调用，写出校验和与文件尾，不会关闭输出流
+     */
+    void finish() throws IOException {
+        if (mWrittenRows != mHeight)
+            throw new IllegalStateException("expect " + mHeight + " rows, got " + mWrittenRows);
+        byte[] adler = new byte[4];
+        putInt(adler, 0, (int) mAdler);
+        write(adler, adler.length);
+        flushChunk();
+        writeChunk("IEND", new byte[0], 0);
+        release();
+        mOut.flush();
+    }
+
+    /**
+     * 释放所有 Deflater，出错时也需要调用
+     */
+    void release() {
+        synchronized (mDeflaters) {
+            for (Deflater deflater : mDeflaters) {
+                deflater.end();
+            }
+            mDeflaters.clear();
+        }
+    }
+
+    //先并行过滤所有段，每段的字典是前面一段过滤后的数据，再并行压缩
+    private void runAll() {
+        if (mPool == null || mSegments.size() == 1) {
+            for (Segment segment : mSegments) {
+                segment.filter();
+            }
+            for (Segment segment : mSegments) {
+                segment.deflate();
+            }
+            return;
+        }
+        mPool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                for (Segment segment : mSegments) {
+                    segment.phase = Segment.FILTER;
+                }
+                invokeAll(mSegments);
+                for (Segment segment : mSegments) {
+                    segment.phase = Segment.DEFLATE;
+                    segment.reinitialize();
+                }
+                invokeAll(mSegments);
+            }
+        });
+    }
+
+    //本次过滤后数据 [0, length) 之前的 32K，不够时从上一次的字典里补
+    private byte[] getDictionary(int length) {
+        int size = Math.min(DICTIONARY_SIZE, mDictionary.length + length);
+        byte[] dictionary = new byte[size];
+        int fromFiltered = Math.min(size, length);
+        int fromOld = size - fromFiltered;
+        System.arraycopy(mDictionary, mDictionary.length - fromOld, dictionary, 0, fromOld);
+        System.arraycopy(mFiltered, length - fromFiltered, dictionary, fromOld, fromFiltered);
+        return dictionary;
+    }
+
+    private Deflater obtainDeflater() {
+        synchronized (mDeflaters) {
+            Deflater deflater = mDeflaters.poll();
+            if (deflater != null)
+                return deflater;
+        }
+        //不带 zlib 头和校验和，由编码器统一写
+        return new Deflater(mLevel, true);
+    }
+
+    private void recycleDeflater(Deflater deflater) {
+        deflater.reset();
+        synchronized (mDeflaters) {
+            mDeflaters.add(deflater);
+        }
+    }
+
+    //一段连续的行，先过滤到 mFiltered 中，再压缩成一段 deflate 数据
+    private class Segment extends RecursiveAction {
+        static final int FILTER = 0;
+        static final int DEFLATE = 1;
+
+        final int[] pixels;
+        final int offset, stride;
+        //在本次给的行中的范围
+        final int startRow, endRow;
+        //整张图的最后一段，压缩时结束 deflate 流
+        final boolean last;
+        int phase;
+        byte[] output;
+        int outputLength;
+        long adler;
+
+        Segment(int[] pixels, int offset, int stride, int startRow, int endRow, boolean last) {
+            this.pixels = pixels;
+            this.offset = offset;
+            this.stride = stride;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.last = last;
+        }
+
+        int start() {
+            return startRow * (mRowBytes + 1);
+        }
+
+        int length() {
+            return (endRow - startRow) * (mRowBytes + 1);
+        }
+
+        @Override
+        protected void compute() {
+            if (phase == FILTER) {
+                filter();
+            } else {
+                deflate();
+            }
+        }
+
+        void filter() {
+            byte[] prev = new byte[mRowBytes];
+            byte[] row = new byte[mRowBytes];
+            byte[] scratch = new byte[mRowBytes + 1];
+            if (startRow == 0) {
+                System.arraycopy(mPrevRow, 0, prev, 0, mRowBytes);
+            } else {
+                toBytes(pixels, offset + (startRow - 1) * stride, prev);
+            }
+            int position = start();
+            for (int y = startRow; y < endRow; y++) {
+                toBytes(pixels, offset + y * stride, row);
+                filterRow(row, prev, mFiltered, position, scratch, mBpp);
+                position += mRowBytes + 1;
+                byte[] temp = prev;
+                prev = row;
+                row = temp;
+            }
+        }
+
+        void deflate() {
+            int start = start();
+            int length = length();
+            Adler32 checksum = new Adler32();
+            checksum.update(mFiltered, start, length);
+            adler = checksum.getValue();
+
+            Deflater deflater = obtainDeflater();
+            if (start >= DICTIONARY_SIZE) {
+                deflater.setDictionary(mFiltered, start - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            } else {
+                byte[] dictionary = getDictionary(start);
+                if (dictionary.length > 0)
+                    deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(mFiltered, start, length);
+            if (last)
+                deflater.finish();
+            output = new byte[length / 2 + 1024];
+            outputLength = 0;
+            while (true) {
+                int space = output.length - outputLength;
+                int count = last ? deflater.deflate(output, outputLength, space)
+                        : deflater.deflate(output, outputLength, space, Deflater.SYNC_FLUSH);
+                outputLength += count;
+                //SYNC_FLUSH 时输出没有填满就说明已经全部刷出
+                if (last ? deflater.finished() : count < space)
+                    break;
+                if (outputLength == output.length) {
+                    byte[] grown = new byte[output.length * 2];
+                    System.arraycopy(output, 0, grown, 0, outputLength);
+                    output = grown;
+                }
+            }
+            recycleDeflater(deflater);
+        }
+    }
+
+    private void toBytes(int[] pixels, int offset, byte[] out) {
+        int j = 0;
+        for (int x = 0; x < mWidth; x++) {
+            int color = pixels[offset + x];
+            out[j++] = (byte) (color >> 16);
+            out[j++] = (byte) (color >> 8);
+            out[j++] = (byte) color;
+            if (mBpp == 4)
+                out[j++] = (byte) (color >>> 24);
+        }
+    }
+
+    /**
+     * 选出绝对值和最小的过滤方式，把过滤后的一行写到 out 的 position 处，第一个字节是过滤方式
+     *
+     * @param scratch 比 row 长 1 的临时数组
+     */
+    static void filterRow(byte[] row, byte[] prev, byte[] out, int position, byte[] scratch, int bpp) {
+        int length = row.length + 1;
+        long best = Long.MAX_VALUE;
+        for (int type = 0; type <= 4; type++) {
+            long sum = filter(type, row, prev, scratch, bpp);
+            if (sum < best) {
+                best = sum;
+                System.arraycopy(scratch, 0, out, position, length);
+            }
+        }
+    }
+
+    //返回过滤结果按有符号字节的绝对值和
+    private static long filter(int type, byte[] row, byte[] prev, byte[] out, int bpp) {
+        out[0] = (byte) type;
+        long sum = 0;
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xFF;
+            int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+            int b = prev[i] & 0xFF;
+            int value;
+            if (type == 0) {
+                value = x;
+            } else if (type == 1) {
+                value = x - a;
+            } else if (type == 2) {
+                value = x - b;
+            } else if (type == 3) {
+                value = x - ((a + b) >> 1);
+            } else {
+                int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                value = x - paeth(a, b, c);
+            }
+            byte filtered = (byte) value;
+            out[i + 1] = filtered;
+            sum += Math.abs(filtered);
+        }
+        return sum;
+    }
+
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * 合并两段数据的 Adler-32，和 zlib 的 adler32_combine 一样
+     *
+     * @param length2 第二段的长度
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = rem * sum1 % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base)
+            sum1 -= base;
+        if (sum1 >= base)
+            sum1 -= base;
+        if (sum2 >= base << 1)
+            sum2 -= base << 1;
+        if (sum2 >= base)
+            sum2 -= base;
+        return sum2 << 16 | sum1;
+    }
+
+    //压缩后的数据按 IDAT 块写出
+    private void write(byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(length - offset, CHUNK_SIZE - mChunkLength);
+            System.arraycopy(data, offset, mChunk, mChunkLength, count);
+            mChunkLength += count;
+            offset += count;
+            if (mChunkLength == CHUNK_SIZE)
+                flushChunk();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (mChunkLength == 0)
+            return;
+        writeChunk("IDAT", mChunk, mChunkLength);
+        mChunkLength = 0;
+    }
+
+    private void writeHeader(boolean hasAlpha) throws IOException {
+        mOut.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, mWidth);
+        putInt(header, 4, mHeight);
+        header[8] = 8; //每个通道 8 位
+        header[9] = (byte) (hasAlpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        //压缩、过滤、隔行扫描方式都是 0
+        writeChunk("IHDR", header, header.length);
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] head = new byte[8];
+        putInt(head, 0, length);
+        for (int i = 0; i < 4; i++) {
+            head[4 + i] = (byte) type.charAt(i);
+        }
+        mOut.write(head);
+        mOut.write(data, 0, length);
+        mCrc.reset();
+        mCrc.update(head, 4, 4);
+        mCrc.update(data, 0, length);
+        byte[] crc = new byte[4];
+        putInt(crc, 0, (int) mCrc.getValue());
+        mOut.write(crc);
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
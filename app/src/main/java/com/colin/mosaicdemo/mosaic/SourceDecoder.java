@@ -0,0 +1,210 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.colin.mosaicdemo.util.SizeUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * create by colin
+ * 2020/12/31
+ * <p>
+ * 在后台解码原图。先用很大的采样率解出一张小预览图尽快显示，再解码编辑用的工作图，
+ * 工作图的像素数不超过上限，原图太大时按 2 的幂缩小。
+ * <p>
+ * 两次解码都从 BitmapPool 取图作为 inBitmap，回调都在主线程。
+ * 取消后还没交出去的图片会还给 pool。
+ */
+public class SourceDecoder {
+
+    //预览图长边的上限
+    public static final int DEFAULT_PREVIEW_SIZE = 512;
+
+    private final BitmapPool mPool;
+    private final long mMaxPixels;
+    private int mPreviewSize = DEFAULT_PREVIEW_SIZE;
+    private int mTileCacheBytes;
+    private volatile boolean mCancelled;
+
+    public interface DecodeListener {
+        /**
+         * 预览图，原图比预览图上限还小时不会回调。预览图的所有权交给调用方
+         *
+         * @param width  工作图的宽度，预览图需要放大到工作图的尺寸显示
+         * @param height 工作图的高度
+         */
+        void onPreviewReady(Bitmap preview, int width, int height);
+
+        /**
+         * @param source       工作图，所有权交给调用方
+         * @param sourceWidth  原图的宽度，工作图没有缩小时和工作图一样
+         * @param sourceHeight 原图的高度
+         * @param tiledSource  开启了分块显示并且工作图是缩小过的才有，否则为空
+         */
+        void onSourceReady(Bitmap source, int sourceWidth, int sourceHeight, TiledImageSource tiledSource);
+
+        void onDecodeFailed(Exception e);
+    }
+
+    /**
+     * @param maxPixels 工作图的像素数上限
+     */
+    public SourceDecoder(BitmapPool pool, long maxPixels) {
+        mPool = pool;
+        mMaxPixels = maxPixels;
+    }
+
+    /**
+     * @param previewSize 预览图长边的上限，0 表示不需要预览图
+     */
+    public SourceDecoder setPreviewSize(int previewSize) {
+        mPreviewSize = previewSize;
+        return this;
+    }
+
+    /**
+     * 工作图是缩小过的时候，同时在后台打开原图的分块解码
+     *
+     * @param maxBytes 瓦片缓存的字节上限，0 表示不需要
+     */
+    public SourceDecoder setTiledSource(int maxBytes) {
+        mTileCacheBytes = maxBytes;
+        return this;
+    }
+
+    public void start(final MosaicExporter.Source source, final DecodeListener listener) {
+        MosaicEngine.getPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    decode(source, listener);
+                } catch (final IOException e) {
+                    deliverError(e, listener);
+                } catch (final RuntimeException e) {
+                    deliverError(e, listener);
+                }
+            }
+        });
+    }
+
+    /**
+     * 之后不会再有回调，已经在解码的图片完成后还给 pool
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    private void decode(MosaicExporter.Source source, final DecodeListener listener) throws IOException {
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        InputStream in = source.open();
+        try {
+            BitmapFactory.decodeStream(in, null, bounds);
+        } finally {
+            in.close();
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+            throw new IOException("unsupported image");
+        int sampleSize = SizeUtils.computeSampleSize(bounds.outWidth, bounds.outHeight, mMaxPixels);
+        final int width = getSampledSize(bounds.outWidth, sampleSize);
+        final int height = getSampledSize(bounds.outHeight, sampleSize);
+        if (mPreviewSize > 0) {
+            int previewSampleSize = sampleSize;
+            while (Math.max(bounds.outWidth, bounds.outHeight) / previewSampleSize > mPreviewSize) {
+                previewSampleSize *= 2;
+            }
+            //工作图本身就很小时直接解码工作图
+            if (previewSampleSize > sampleSize) {
+                final Bitmap preview = decodeSampled(source, bounds, previewSampleSize);
+                MosaicEngine.getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCancelled) {
+                            mPool.put(preview);
+                            return;
+                        }
+                        listener.onPreviewReady(preview, width, height);
+                    }
+                });
+            }
+        }
+        if (mCancelled)
+            return;
+        final Bitmap bitmap = decodeSampled(source, bounds, sampleSize);
+        TiledImageSource tiledSource = null;
+        if (mTileCacheBytes > 0 && sampleSize > 1 && !mCancelled) {
+            try {
+                tiledSource = TiledImageSource.open(source.open(), mPool, mTileCacheBytes);
+            } catch (IOException e) {
+                mPool.put(bitmap);
+                throw e;
+            }
+        }
+        final TiledImageSource result = tiledSource;
+        MosaicEngine.getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    mPool.put(bitmap);
+                    if (result != null)
+                        result.release();
+                    return;
+                }
+                listener.onSourceReady(bitmap, bounds.outWidth, bounds.outHeight, result);
+            }
+        });
+    }
+
+    private void deliverError(final Exception e, final DecodeListener listener) {
+        MosaicEngine.getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled)
+                    listener.onDecodeFailed(e);
+            }
+        });
+    }
+
+    //inBitmap 按向上取整分配，解码后 Bitmap 会被调整为实际的尺寸
+    private Bitmap decodeSampled(MosaicExporter.Source source, BitmapFactory.Options bounds, int sampleSize)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = mPool.getDirty(getSampledSize(bounds.outWidth, sampleSize),
+                getSampledSize(bounds.outHeight, sampleSize), Bitmap.Config.ARGB_8888);
+        Bitmap bitmap;
+        try {
+            bitmap = decodeStream(source, options);
+        } catch (IllegalArgumentException e) {
+            //有些格式不支持复用，不复用再解码一次
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decodeStream(source, options);
+        }
+        if (options.inBitmap != null && bitmap != options.inBitmap)
+            mPool.put(options.inBitmap);
+        if (bitmap == null)
+            throw new IOException("decode failed");
+        return bitmap;
+    }
+
+    private static Bitmap decodeStream(MosaicExporter.Source source, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = source.open();
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int getSampledSize(int size, int sampleSize) {
+        return (size + sampleSize - 1) / sampleSize;
+    }
+}
@@ -0,0 +1,279 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+
+/**
+ * create by colin
+ * 2020/12/30
+ * <p>
+ * 大图的分块显示。编辑用的是缩小过的工作图，放大到工作图不够清晰时，
+ * 用 {@link BitmapRegionDecoder} 从原图解码可见区域的瓦片盖在工作图上。
+ * <p>
+ * 采样率按屏幕上一个像素对应的原图边长取 2 的幂，解码出来的瓦片不会比屏幕更粗糙。
+ * 瓦片按 采样率 + 行列 缓存，LRU 淘汰后还给 BitmapPool，占用的内存只和可见区域有关，和原图大小无关。
+ * <p>
+ * 解码在单独的线程按请求顺序进行，解码前会检查瓦片是否还可见，快速平移缩放时不会堆积。
+ * 缓存只在主线程访问。
+ */
+public class TiledImageSource {
+
+    private static final String TAG = "TiledImageSource";
+    //解码后瓦片的边长
+    static final int TILE_SIZE = 512;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    private final BitmapRegionDecoder mDecoder;
+    private final int mWidth, mHeight;
+    private final BitmapPool mPool;
+    private final int mMaxBytes;
+    private final LruCache<Long, Bitmap> mCache;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private OnTileReadyListener mListener;
+    private boolean mReleased;
+
+    //当前可见的瓦片和已经提交解码的瓦片，两个线程都会访问，需要持有 mLock
+    private final Object mLock = new Object();
+    private final HashSet<Long> mVisible = new HashSet<>();
+    private final HashSet<Long> mPending = new HashSet<>();
+
+    //以下只在主线程中使用
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTileDst = new RectF();
+
+    public interface OnTileReadyListener {
+        /**
+         * 有新的瓦片解码完成，主线程回调，需要重绘
+         */
+        void onTileReady();
+    }
+
+    /**
+     * @param in       原图的数据，读完后关闭
+     * @param maxBytes 瓦片缓存的字节上限，可见区域最多用一半
+     */
+    public static TiledImageSource open(InputStream in, BitmapPool pool, int maxBytes) throws IOException {
+        try {
+            return new TiledImageSource(BitmapRegionDecoder.newInstance(in, false), pool, maxBytes);
+        } finally {
+            in.close();
+        }
+    }
+
+    private TiledImageSource(BitmapRegionDecoder decoder, BitmapPool pool, int maxBytes) {
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mPool = pool;
+        mMaxBytes = Math.max(maxBytes, TILE_BYTES * 2);
+        mCache = new LruCache<Long, Bitmap>(mMaxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue)
+                    mPool.put(oldValue);
+            }
+        };
+        mThread = new HandlerThread("mosaic-tiles", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * 默认使用堆上限的 1/8
+     */
+    public static int getDefaultMaxBytes() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void setOnTileReadyListener(OnTileReadyListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 画出可见区域的瓦片，还没解码的提交到后台，解码完成后通过 {@link OnTileReadyListener} 通知重绘。
+     * 工作图已经足够清晰时什么都不画。
+     *
+     * @param canvas    已经变换到工作图坐标的画布
+     * @param left      工作图左上角在画布上的位置
+     * @param top       工作图左上角在画布上的位置
+     * @param workScale 工作图一个像素对应原图的边长
+     * @param viewScale 工作图一个像素在屏幕上的边长，即 ViewCamera 的缩放
+     * @param visible   屏幕可见的范围，工作图坐标
+     */
+    void draw(Canvas canvas, float left, float top, float workScale, float viewScale, RectF visible) {
+        if (mReleased)
+            return;
+        //屏幕一个像素对应的原图边长
+        float sourcePerScreen = workScale / viewScale;
+        int sampleSize = 1;
+        while (sampleSize * 2 <= sourcePerScreen) {
+            sampleSize *= 2;
+        }
+        mVisibleRect.set(visible.left * workScale, visible.top * workScale,
+                visible.right * workScale, visible.bottom * workScale);
+        if (!mVisibleRect.intersect(0, 0, mWidth, mHeight)) {
+            setVisible(0, 0, 0, 0, 0);
+            return;
+        }
+        //可见的瓦片放不下时降低采样率，宁可模糊一点也不能让可见的瓦片互相淘汰
+        int span, startCol, startRow, endCol, endRow;
+        while (true) {
+            span = TILE_SIZE * sampleSize;
+            startCol = (int) (mVisibleRect.left / span);
+            startRow = (int) (mVisibleRect.top / span);
+            endCol = (int) Math.ceil(mVisibleRect.right / span);
+            endRow = (int) Math.ceil(mVisibleRect.bottom / span);
+            if ((long) (endCol - startCol) * (endRow - startRow) * TILE_BYTES <= mMaxBytes / 2)
+                break;
+            sampleSize *= 2;
+        }
+        //解码出来不比工作图清晰就不用画了
+        if (sampleSize >= workScale) {
+            setVisible(0, 0, 0, 0, 0);
+            return;
+        }
+        setVisible(sampleSize, startCol, startRow, endCol, endRow);
+        for (int row = startRow; row < endRow; row++) {
+            for (int col = startCol; col < endCol; col++) {
+                long key = getKey(sampleSize, col, row);
+                Bitmap tile = mCache.get(key);
+                if (tile == null) {
+                    request(key, sampleSize, col, row);
+                    continue;
+                }
+                mTileDst.set(col * span / workScale + left, row * span / workScale + top,
+                        Math.min((col + 1) * span, mWidth) / workScale + left,
+                        Math.min((row + 1) * span, mHeight) / workScale + top);
+                canvas.drawBitmap(tile, null, mTileDst, mPaint);
+            }
+        }
+    }
+
+    /**
+     * 停止解码，缓存的瓦片还给 pool，之后不能再使用
+     */
+    public void release() {
+        if (mReleased)
+            return;
+        mReleased = true;
+        synchronized (mLock) {
+            mVisible.clear();
+        }
+        mCache.evictAll();
+        //正在解码的瓦片结束后才能回收解码器
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.recycle();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    //记录这一帧可见的瓦片，不再可见的瓦片在解码前会被跳过
+    private void setVisible(int sampleSize, int startCol, int startRow, int endCol, int endRow) {
+        synchronized (mLock) {
+            mVisible.clear();
+            for (int row = startRow; row < endRow; row++) {
+                for (int col = startCol; col < endCol; col++) {
+                    mVisible.add(getKey(sampleSize, col, row));
+                }
+            }
+        }
+    }
+
+    private void request(final long key, final int sampleSize, final int col, final int row) {
+        synchronized (mLock) {
+            if (!mPending.add(key))
+                return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (!mVisible.contains(key)) {
+                        mPending.remove(key);
+                        return;
+                    }
+                }
+                final Bitmap tile = decodeTile(sampleSize, col, row);
+                MosaicEngine.getMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mLock) {
+                            mPending.remove(key);
+                        }
+                        if (tile == null)
+                            return;
+                        if (mReleased) {
+                            mPool.put(tile);
+                            return;
+                        }
+                        mCache.put(key, tile);
+                        if (mListener != null)
+                            mListener.onTileReady();
+                    }
+                });
+            }
+        });
+    }
+
+    //解码线程
+    private Bitmap decodeTile(int sampleSize, int col, int row) {
+        int span = TILE_SIZE * sampleSize;
+        Rect region = new Rect(col * span, row * span,
+                Math.min((col + 1) * span, mWidth), Math.min((row + 1) * span, mHeight));
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        //边缘的瓦片解码后的尺寸和取整方式有关，只有完整的瓦片复用 pool 里的图
+        boolean full = region.width() == span && region.height() == span;
+        if (full)
+            options.inBitmap = mPool.getDirty(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        Bitmap tile = mDecoder.decodeRegion(region, options);
+        if (tile == null) {
+            Log.w(TAG, "decode tile failed: " + region);
+            if (full)
+                mPool.put(options.inBitmap);
+        } else if (full && tile != options.inBitmap) {
+            mPool.put(options.inBitmap);
+        }
+        return tile;
+    }
+
+    private static long getKey(int sampleSize, int col, int row) {
+        return (long) sampleSize << 48 | (long) row << 24 | col;
+    }
+}
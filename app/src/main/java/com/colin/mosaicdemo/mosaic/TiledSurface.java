@@ -0,0 +1,292 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+/**
+ * create by colin
+ * 2020/12/22
+ * <p>
+ * 分块的画布，把一张大图切成固定大小的瓦片，瓦片在第一次被画到时才从 BitmapPool 中取出。
+ * 没画过的区域不占内存，适合只涂抹了一小部分的大图。
+ * <p>
+ * 绘制时使用的都是整张图的坐标，瓦片的画布已经平移好。
+ * <p>
+ * 只需要覆盖率的图层（比如路径）可以使用 ALPHA_8，内存是 ARGB_8888 的 1/4。
+ */
+public class TiledSurface {
+
+    public static final int TILE_SIZE = 256;
+
+    private final int mWidth, mHeight;
+    private final int mCols, mRows;
+    private final Bitmap.Config mConfig;
+    private final BitmapPool mPool;
+    private final Bitmap[] mTiles;
+    private final Canvas mCanvas = new Canvas();
+    private final Rect mClip = new Rect();
+    private final Rect mRange = new Rect();
+    private Paint mCopyPaint;
+    private int mTileCount;
+
+    public interface TileDrawer {
+        /**
+         * @param canvas 已经平移到整张图的坐标系，并裁剪到瓦片和绘制范围的交集
+         */
+        void draw(Canvas canvas);
+    }
+
+    public TiledSurface(int width, int height, BitmapPool pool) {
+        this(width, height, Bitmap.Config.ARGB_8888, pool);
+    }
+
+    public TiledSurface(int width, int height, Bitmap.Config config, BitmapPool pool) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mPool = pool;
+        mCols = MosaicIntegralImage.getBlockCount(width, TILE_SIZE);
+        mRows = MosaicIntegralImage.getBlockCount(height, TILE_SIZE);
+        mTiles = new Bitmap[mCols * mRows];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    public int getCols() {
+        return mCols;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    /**
+     * 已经分配的瓦片数
+     */
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+    /**
+     * @return 没有画过时为空
+     */
+    public Bitmap getTile(int col, int row) {
+        return mTiles[row * mCols + col];
+    }
+
+    /**
+     * 取得一个瓦片，没有时分配一个透明的
+     */
+    public Bitmap obtainTile(int col, int row) {
+        int index = row * mCols + col;
+        Bitmap tile = mTiles[index];
+        if (tile == null) {
+            //pool.get 返回的是透明的图
+            tile = mPool.get(TILE_SIZE, TILE_SIZE, mConfig);
+            mTiles[index] = tile;
+            mTileCount++;
+        }
+        return tile;
+    }
+
+    /**
+     * 在 bounds 覆盖到的每个瓦片上执行一次 drawer，没有的瓦片会先分配。
+     *
+     * @param bounds 整张图坐标系中的范围，需要包含画笔宽度
+     */
+    public void draw(RectF bounds, TileDrawer drawer) {
+        bounds.roundOut(mClip);
+        draw(mClip, drawer);
+    }
+
+    public void draw(Rect bounds, TileDrawer drawer) {
+        draw(bounds, drawer, true);
+    }
+
+    /**
+     * @param allocate 为 false 时跳过还没有分配的瓦片，比如橡皮擦画在透明的区域上没有效果
+     */
+    public void draw(RectF bounds, TileDrawer drawer, boolean allocate) {
+        bounds.roundOut(mClip);
+        draw(mClip, drawer, allocate);
+    }
+
+    public void draw(Rect bounds, TileDrawer drawer, boolean allocate) {
+        if (!getTileRange(bounds, mRange))
+            return;
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                if (!allocate && getTile(col, row) == null)
+                    continue;
+                Canvas canvas = lockTile(col, row);
+                canvas.clipRect(bounds);
+                drawer.draw(canvas);
+                unlockTile();
+            }
+        }
+    }
+
+    /**
+     * 计算 bounds 覆盖到的瓦片
+     *
+     * @param out 瓦片的列和行，包含 right 和 bottom
+     * @return bounds 和整张图没有交集时返回 false
+     */
+    public boolean getTileRange(Rect bounds, Rect out) {
+        if (bounds.isEmpty() || bounds.right <= 0 || bounds.bottom <= 0
+                || bounds.left >= mWidth || bounds.top >= mHeight)
+            return false;
+        out.set(Math.max(0, bounds.left / TILE_SIZE), Math.max(0, bounds.top / TILE_SIZE),
+                Math.min(mCols - 1, (bounds.right - 1) / TILE_SIZE),
+                Math.min(mRows - 1, (bounds.bottom - 1) / TILE_SIZE));
+        return true;
+    }
+
+    /**
+     * 取得某个瓦片的画布，用完需要调用 {@link #unlockTile()}
+     */
+    public Canvas lockTile(int col, int row) {
+        mCanvas.setBitmap(obtainTile(col, row));
+        mCanvas.save();
+        mCanvas.translate(-col * TILE_SIZE, -row * TILE_SIZE);
+        return mCanvas;
+    }
+
+    public void unlockTile() {
+        mCanvas.restore();
+        mCanvas.setBitmap(null);
+    }
+
+    /**
+     * 把已经分配的瓦片画到 canvas 上
+     *
+     * @param left 整张图的左上角在 canvas 中的位置
+     */
+    public void drawTo(Canvas canvas, float left, float top, Paint paint) {
+        for (int row = 0; row < mRows; row++) {
+            for (int col = 0; col < mCols; col++) {
+                Bitmap tile = mTiles[row * mCols + col];
+                if (tile != null) {
+                    canvas.drawBitmap(tile, left + col * TILE_SIZE, top + row * TILE_SIZE, paint);
+                }
+            }
+        }
+    }
+
+    /**
+     * 复制另一个同样大小的画布的内容
+     */
+    public void copyFrom(TiledSurface src) {
+        clear();
+        ensureCopyPaint();
+        for (int row = 0; row < mRows; row++) {
+            for (int col = 0; col < mCols; col++) {
+                Bitmap tile = src.getTile(col, row);
+                if (tile != null) {
+                    Canvas canvas = lockTile(col, row);
+                    canvas.drawBitmap(tile, col * TILE_SIZE, row * TILE_SIZE, mCopyPaint);
+                    unlockTile();
+                }
+            }
+        }
+    }
+
+    /**
+     * 只复制 bounds 范围内的内容，范围外保持不变
+     */
+    public void copyFrom(TiledSurface src, Rect bounds) {
+        if (!getTileRange(bounds, mRange))
+            return;
+        ensureCopyPaint();
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                Bitmap tile = src.getTile(col, row);
+                if (tile == null) {
+                    clearTile(col, row, bounds);
+                    continue;
+                }
+                Canvas canvas = lockTile(col, row);
+                canvas.clipRect(bounds);
+                canvas.drawBitmap(tile, col * TILE_SIZE, row * TILE_SIZE, mCopyPaint);
+                unlockTile();
+            }
+        }
+    }
+
+    private void ensureCopyPaint() {
+        if (mCopyPaint == null) {
+            mCopyPaint = new Paint();
+            mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
+    }
+
+    /**
+     * 清空 bounds 范围内的内容，整个被覆盖的瓦片直接还给 pool
+     */
+    public void clear(Rect bounds) {
+        if (!getTileRange(bounds, mRange))
+            return;
+        for (int row = mRange.top; row <= mRange.bottom; row++) {
+            for (int col = mRange.left; col <= mRange.right; col++) {
+                clearTile(col, row, bounds);
+            }
+        }
+    }
+
+    private void clearTile(int col, int row, Rect bounds) {
+        if (getTile(col, row) == null)
+            return;
+        int left = col * TILE_SIZE;
+        int top = row * TILE_SIZE;
+        if (bounds.left <= left && bounds.top <= top
+                && bounds.right >= left + TILE_SIZE && bounds.bottom >= top + TILE_SIZE) {
+            releaseTile(col, row);
+            return;
+        }
+        Canvas canvas = lockTile(col, row);
+        canvas.clipRect(bounds);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        unlockTile();
+    }
+
+    /**
+     * 把一个瓦片还给 pool，之后这个瓦片范围是透明的
+     */
+    public void releaseTile(int col, int row) {
+        int index = row * mCols + col;
+        if (mTiles[index] != null) {
+            mPool.put(mTiles[index]);
+            mTiles[index] = null;
+            mTileCount--;
+        }
+    }
+
+    /**
+     * 清空，所有瓦片还给 pool
+     */
+    public void clear() {
+        for (int row = 0; row < mRows; row++) {
+            for (int col = 0; col < mCols; col++) {
+                releaseTile(col, row);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.colin.mosaicdemo.mosaic;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+
+/**
+ * create by colin
+ * 2021/1/3
+ * <p>
+ * 屏幕分辨率的一帧。只保存可见区域（加上一圈余量）的合成结果，一个像素对应屏幕上的一个像素，
+ * 缩小显示大图时合成和绘制的像素数只和屏幕大小有关。
+ * <p>
+ * 位置和缩放由渲染线程在合成前设置，和上次不同时整帧重新合成，否则只合成变化的区域。
+ * 作为前台缓冲时主线程会读取，需要和 {@link MosaicPainter} 的前后缓冲一起加锁。
+ */
+class ViewportFrame {
+
+    //帧覆盖的范围，原图坐标
+    private final RectF mRect = new RectF();
+    //原图一个像素在帧上的边长，0 表示帧里没有内容
+    private float mScale;
+    //实际使用的像素尺寸，图片可能更大，复用时不用重新分配
+    private int mWidth, mHeight;
+    private Bitmap mBitmap;
+    private Canvas mCanvas;
+    //作为前台缓冲期间发生的变化，下次合成时补上，原图坐标
+    private final RectF mPending = new RectF();
+    private final Rect mSrcRect = new Rect();
+    private final RectF mDstRect = new RectF();
+
+    boolean isValid() {
+        return mScale > 0;
+    }
+
+    float getScale() {
+        return mScale;
+    }
+
+    /**
+     * 帧的范围包含 visible，并且缩放和 scale 的比例在 tolerance 以内
+     *
+     * @param tolerance 允许的缩放比例，1 表示必须完全一样
+     */
+    boolean covers(RectF visible, float scale, float tolerance) {
+        if (!isValid() || !mRect.contains(visible))
+            return false;
+        float ratio = scale / mScale;
+        return ratio <= tolerance && ratio * tolerance >= 1;
+    }
+
+    /**
+     * 渲染线程：换到新的位置和缩放，和现在一样时什么都不做
+     *
+     * @return 位置或缩放变了，需要整帧重新合成
+     */
+    boolean setViewport(RectF rect, float scale, BitmapPool pool) {
+        if (isValid() && mScale == scale && mRect.equals(rect))
+            return false;
+        mWidth = Math.max(1, (int) Math.ceil(rect.width() * scale));
+        mHeight = Math.max(1, (int) Math.ceil(rect.height() * scale));
+        if (mBitmap == null || mBitmap.getWidth() < mWidth || mBitmap.getHeight() < mHeight) {
+            if (mBitmap != null)
+                pool.put(mBitmap);
+            mBitmap = pool.getDirty(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            if (mCanvas == null)
+                mCanvas = new Canvas();
+            mCanvas.setBitmap(mBitmap);
+        }
+        //合成只会裁剪到帧的范围，边上不到一个像素的部分也要是透明的
+        mBitmap.eraseColor(Color.TRANSPARENT);
+        mRect.set(rect);
+        mScale = scale;
+        mPending.set(rect);
+        return true;
+    }
+
+    /**
+     * 记录一块需要重新合成的区域，原图坐标
+     */
+    void addPending(Rect bounds) {
+        if (isValid() && !bounds.isEmpty())
+            mPending.union(bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
+    /**
+     * 渲染线程：取出需要合成的区域并清空，画布已经变换到原图坐标并裁剪到这个区域，
+     * 用完后调用 {@link #unlock()}
+     *
+     * @return 没有需要合成的区域时返回空
+     */
+    Canvas lock(RectF outBounds) {
+        outBounds.set(mPending);
+        mPending.setEmpty();
+        if (!outBounds.intersect(mRect))
+            return null;
+        mCanvas.save();
+        mCanvas.scale(mScale, mScale);
+        mCanvas.translate(-mRect.left, -mRect.top);
+        mCanvas.clipRect(outBounds);
+        mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        return mCanvas;
+    }
+
+    void unlock() {
+        mCanvas.restore();
+    }
+
+    /**
+     * 画到原图坐标系的画布上
+     *
+     * @param left 原图左上角在画布上的位置
+     */
+    void drawTo(Canvas canvas, float left, float top, Paint paint) {
+        if (!isValid())
+            return;
+        mSrcRect.set(0, 0, mWidth, mHeight);
+        mDstRect.set(mRect.left + left, mRect.top + top,
+                mRect.left + left + mWidth / mScale, mRect.top + top + mHeight / mScale);
+        canvas.drawBitmap(mBitmap, mSrcRect, mDstRect, paint);
+    }
+
+    /**
+     * 内容作废，下次合成时整帧重画
+     */
+    void invalidate() {
+        mScale = 0;
+        mPending.setEmpty();
+    }
+
+    void release(BitmapPool pool) {
+        invalidate();
+        if (mBitmap != null) {
+            mCanvas.setBitmap(null);
+            pool.put(mBitmap);
+            mBitmap = null;
+        }
+    }
+}
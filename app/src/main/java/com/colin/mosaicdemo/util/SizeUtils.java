@@ -18,13 +18,17 @@ public class SizeUtils {
 
 
     public static float computeFitScale(@NonNull Bitmap srcBitmap, int viewWidth, int viewHeight) {
+        return computeFitScale(srcBitmap.getWidth(), srcBitmap.getHeight(), viewWidth, viewHeight);
+    }
+
+    /**
+     * 图片还没解码、只知道尺寸时使用
+     */
+    public static float computeFitScale(float imgW, float imgH, int viewWidth, int viewHeight) {
         float fitscale;
 
         float drawMargin = 0f;
 
-        float imgW = srcBitmap.getWidth();
-        float imgH = srcBitmap.getHeight();
-
         float scaleWidth = (viewWidth - drawMargin) / imgW;
 
         float scaleHeight = (viewHeight - drawMargin) / imgH;
@@ -33,4 +37,15 @@ public class SizeUtils {
 
         return fitscale;
     }
+
+    /**
+     * 解码时的 inSampleSize，取 2 的幂，使解码后的像素数不超过 maxPixels
+     */
+    public static int computeSampleSize(int width, int height, long maxPixels) {
+        int sampleSize = 1;
+        while ((long) (width / sampleSize) * (height / sampleSize) > maxPixels) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
 }
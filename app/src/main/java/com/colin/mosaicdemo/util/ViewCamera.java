@@ -178,6 +178,16 @@ public class ViewCamera implements ScalePanGestureDetector.OnScalePanGestureList
         return mapToImageFromScenes(pos[0], pos[1]);
     }
 
+    /**
+     * 不分配新数组的版本，适合在触摸事件里大量调用
+     *
+     * @param out 输出的图像坐标，长度至少为2
+     */
+    public final void mapToImageFromView(float x, float y, float[] out) {
+        out[0] = mViewPos[0] + (x - mView.getWidth() / 2.0f) / mViewScale + mImageWidth / 2.0f;
+        out[1] = mViewPos[1] + (y - (mView.getHeight() - mbottomMargin) / 2.0f) / mViewScale + mImageHeight / 2.0f;
+    }
+
     public final float[] mapToScenesFromImage(float x, float y) {
         float[] pos = new float[2];
 
@@ -201,6 +211,16 @@ public class ViewCamera implements ScalePanGestureDetector.OnScalePanGestureList
         return mapToViewFromScenes(pos[0], pos[1]);
     }
 
+    /**
+     * 不分配新数组的版本，适合在触摸事件里大量调用
+     *
+     * @param out 输出的view坐标，长度至少为2
+     */
+    public final void mapToViewFromImage(float x, float y, float[] out) {
+        out[0] = (x - mImageWidth / 2.0f - mViewPos[0]) * mViewScale + mView.getWidth() / 2.0f;
+        out[1] = (y - mImageHeight / 2.0f - mViewPos[1]) * mViewScale + (mView.getHeight() - mbottomMargin) / 2.0f;
+    }
+
     public final RectF mapToScenesFromImage(RectF rect) {
         float[] leftTop = mapToScenesFromImage(rect.left, rect.top);
         float[] rightBottom = mapToScenesFromImage(rect.right, rect.bottom);
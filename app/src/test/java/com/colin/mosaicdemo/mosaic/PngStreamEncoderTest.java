@@ -0,0 +1,117 @@
+package com.colin.mosaicdemo.mosaic;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 并行 PNG 编码器在 JVM 上的测试，用 ImageIO 作为标准解码器
+ */
+public class PngStreamEncoderTest {
+
+    //一行 1201 字节，一段约 109 行，分带 256 行时每次都会跨段，也会用到上一次的字典
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 700;
+    private static final int BAND_ROWS = 256;
+
+    @Test
+    public void decodesToSamePixels() throws IOException {
+        for (boolean hasAlpha : new boolean[]{false, true}) {
+            int[] pixels = createPixels(WIDTH, HEIGHT, hasAlpha);
+            assertDecodes(encode(pixels, WIDTH, HEIGHT, hasAlpha, new ForkJoinPool(4)), pixels, hasAlpha);
+        }
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws IOException {
+        int[] pixels = createPixels(WIDTH, HEIGHT, true);
+        byte[] sequential = encode(pixels, WIDTH, HEIGHT, true, null);
+        byte[] parallel = encode(pixels, WIDTH, HEIGHT, true, new ForkJoinPool(4));
+        assertArrayEquals(sequential, parallel);
+    }
+
+    @Test
+    public void encodeReadsAllRows() throws IOException {
+        final int[] pixels = createPixels(WIDTH, HEIGHT, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngStreamEncoder.encode(new PngStreamEncoder.RowSource() {
+            @Override
+            public void readRows(int top, int rows, int[] out, int stride) {
+                for (int y = 0; y < rows; y++) {
+                    System.arraycopy(pixels, (top + y) * WIDTH, out, y * stride, WIDTH);
+                }
+            }
+        }, WIDTH, HEIGHT, false, 6, new ForkJoinPool(2), out);
+        //分段和每次给的行数有关，压缩结果不一定相同，只比较解码后的像素
+        assertDecodes(out.toByteArray(), pixels, false);
+    }
+
+    @Test
+    public void combineAdler() {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        int split = 40000;
+        Adler32 whole = new Adler32();
+        whole.update(data, 0, data.length);
+        Adler32 first = new Adler32();
+        first.update(data, 0, split);
+        Adler32 second = new Adler32();
+        second.update(data, split, data.length - split);
+        assertEquals(whole.getValue(),
+                PngStreamEncoder.combineAdler(first.getValue(), second.getValue(), data.length - split));
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, boolean hasAlpha, ForkJoinPool pool)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngStreamEncoder encoder = new PngStreamEncoder(out, width, height, hasAlpha, 6, pool);
+        for (int top = 0; top < height; top += BAND_ROWS) {
+            encoder.writeRows(pixels, top * width, width, Math.min(BAND_ROWS, height - top));
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    private static void assertDecodes(byte[] png, int[] pixels, boolean hasAlpha) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = pixels[y * WIDTH + x];
+                if (!hasAlpha)
+                    expected |= 0xFF000000;
+                assertEquals("pixel " + x + "," + y, expected, image.getRGB(x, y));
+            }
+        }
+    }
+
+    //渐变加噪声，每种过滤方式都有机会被选中
+    private static int[] createPixels(int width, int height, boolean hasAlpha) {
+        Random random = new Random(1);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = hasAlpha ? (x * 3 + y) & 0xFF : 0xFF;
+                int red = (x + y) & 0xFF;
+                int green = (x * y) & 0xFF;
+                int blue = random.nextInt(8) + (y & 0xF0);
+                pixels[y * width + x] = alpha << 24 | red << 16 | green << 8 | blue;
+            }
+        }
+        return pixels;
+    }
+}